@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import mirah.lang.ast.Block;
+import mirah.lang.ast.ClassDefinition;
+import mirah.lang.ast.MethodDefinition;
+import mirah.lang.ast.Node;
+
+/**
+ * The generated code for a node, which can be brought up to date after
+ * parts of the tree were replaced without generating all of it again.
+ *
+ * Macros replace nodes deep inside a script, usually inside one method.
+ * Only the innermost method, class or block containing the change is
+ * generated again. How the other nodes are printed sometimes depends on
+ * their children, but never on what is inside one of those. The new tokens
+ * are spliced in, and the text is laid out again from the first line they
+ * touch until a line starts the same way as before.
+ *
+ * The code can also be had at other widths. Those are laid out for every
+ * width at once by a {@link MultiWidthLayout} the first time they are
+ * asked for, so resizing the view doesn't lay it out again.
+ */
+public class GeneratedCode {
+
+    private final Node root;
+    private final int limit;
+    private final InferredTypes types;
+    private final List<List<Node>> changes = new ArrayList<>();
+    private MirahSourceGenerator generator;
+    private String text;
+    private MultiWidthLayout widths;
+
+    public GeneratedCode(Node root, int limit) {
+        this(root, limit, null);
+    }
+
+    /**
+     * Creates code annotated with types, which are looked up for the whole
+     * tree first.
+     */
+    public GeneratedCode(Node root, int limit, InferredTypes types) {
+        this.root = root;
+        this.limit = limit;
+        this.types = types;
+        if (types != null) {
+            types.lookupAll(root);
+        }
+        generate();
+    }
+
+    public InferredTypes getTypes() {
+        return types;
+    }
+
+    public synchronized String getText() {
+        if (text == null) {
+            text = generator.toString();
+        }
+        return text;
+    }
+
+    public synchronized SourceMap getSourceMap() {
+        return generator.getSourceMap();
+    }
+
+    /**
+     * Returns the code wrapped at width columns rather than at the limit.
+     */
+    public synchronized String getText(int width) {
+        if (width == limit) {
+            return getText();
+        }
+        return widths().getText(width);
+    }
+
+    public synchronized SourceMap getSourceMap(int width) {
+        if (width == limit) {
+            return getSourceMap();
+        }
+        return widths().getSourceMap(width);
+    }
+
+    private MultiWidthLayout widths() {
+        if (widths == null) {
+            // The layouts print copies of the tokens. The code at the limit
+            // is printed first, so update() has its lines to lay out again.
+            getText();
+            widths = new MultiWidthLayout(generator.out);
+        }
+        return widths;
+    }
+
+    /**
+     * Records that node is about to be replaced. Its ancestors are looked up
+     * now, since the node is usually no longer in the tree by the time the
+     * code is updated.
+     */
+    public synchronized void nodeChanged(Node node) {
+        List<Node> path = new ArrayList<>();
+        for (Node n = node; n != null && n != root; n = n.parent()) {
+            path.add(n);
+        }
+        changes.add(path);
+    }
+
+    /**
+     * Brings the code up to date with the changes recorded since the last
+     * update, and returns the nodes whose code was generated again.
+     *
+     * Generating code stops with a CancellationException if the thread is
+     * interrupted. The code is then left as it was, changes and all.
+     */
+    public synchronized List<Node> update() {
+        if (changes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Node> changed = new ArrayList<>();
+        for (List<Node> path : changes) {
+            Node n = restartPoint(path);
+            if (n == null || generator.getTokens().indexOfNode(n) == -1) {
+                changed = null;
+                break;
+            }
+            addOutermost(changed, n);
+        }
+        if (changed == null) {
+            generate();
+            changes.clear();
+            return Collections.singletonList(root);
+        }
+        List<TokenBuffer> parts = new ArrayList<>();
+        for (Node n : changed) {
+            MirahSourceGenerator part = new MirahSourceGenerator();
+            part.setTypes(types);
+            n.accept(part, null);
+            parts.add(part.getTokens());
+        }
+        for (int i = 0; i < changed.size(); ++i) {
+            splice(changed.get(i), parts.get(i));
+        }
+        changes.clear();
+        text = null;
+        widths = null;
+        return changed;
+    }
+
+    private void generate() {
+        MirahSourceGenerator fresh = new MirahSourceGenerator();
+        fresh.setLimit(limit);
+        fresh.setTypes(types);
+        fresh.out.keepLineStarts();
+        root.accept(fresh, null);
+        generator = fresh;
+        text = null;
+        widths = null;
+    }
+
+    private void splice(Node node, TokenBuffer replacement) {
+        TokenBuffer tokens = generator.getTokens();
+        int start = tokens.indexOfNode(node);
+        int end = tokens.endOfNode(start);
+        tokens.replace(start + 1, end, replacement);
+        generator.out.relayout(start + 1, end, replacement.size());
+    }
+
+    /**
+     * Returns the innermost node on path that is still in the tree and can
+     * be printed on its own, or null if there is none below the root.
+     */
+    private Node restartPoint(List<Node> path) {
+        for (Node n : path) {
+            if ((n instanceof MethodDefinition || n instanceof ClassDefinition
+                    || n instanceof Block) && isAttached(n)) {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    private boolean isAttached(Node node) {
+        for (Node n = node; n != null; n = n.parent()) {
+            if (n == root) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addOutermost(List<Node> nodes, Node node) {
+        Iterator<Node> it = nodes.iterator();
+        while (it.hasNext()) {
+            Node other = it.next();
+            if (isAncestor(other, node)) {
+                return;
+            } else if (isAncestor(node, other)) {
+                it.remove();
+            }
+        }
+        nodes.add(node);
+    }
+
+    private static boolean isAncestor(Node ancestor, Node node) {
+        for (Node n = node; n != null; n = n.parent()) {
+            if (n == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import mirah.lang.ast.Node;
+import org.mirah.typer.MethodType;
+import org.mirah.typer.ResolvedType;
+import org.mirah.typer.TypeFuture;
+import org.mirah.typer.Typer;
+
+/**
+ * The names of the types the typer inferred, for annotating generated code.
+ *
+ * Each node is looked up once and the name is remembered, including when
+ * it has no type yet, so the code can be generated again at any width or
+ * after a partial update without asking the typer again. The typer keeps
+ * resolving types while the program runs, so create a new instance each
+ * time it stops. {@link #lookupAll} fetches a whole tree in one pass.
+ */
+public class InferredTypes {
+
+    private final Typer typer;
+    // Nodes don't override equals(), and a null value means no type.
+    private final Map<Node, String> types = new IdentityHashMap<>();
+
+    public InferredTypes(Typer typer) {
+        this.typer = typer;
+    }
+
+    /**
+     * Looks up the types of node and everything under it.
+     */
+    public synchronized void lookupAll(Node node) {
+        new NodeWalker() {
+            @Override
+            protected boolean enter(Node node) {
+                get(node);
+                return true;
+            }
+        }.walk(node);
+    }
+
+    /**
+     * Returns the name of node's type, or null if it doesn't have one yet.
+     * A method's type is its return type.
+     */
+    public synchronized String get(Node node) {
+        if (types.containsKey(node)) {
+            return types.get(node);
+        }
+        String name = lookup(node);
+        types.put(node, name);
+        return name;
+    }
+
+    /**
+     * Asks the typer for the type of node.
+     */
+    protected String lookup(Node node) {
+        TypeFuture future = typer == null ? null : typer.getInferredType(node);
+        if (future == null || !future.isResolved()) {
+            return null;
+        }
+        ResolvedType type = future.resolve();
+        if (type instanceof MethodType) {
+            type = ((MethodType) type).returnType();
+        }
+        return type == null ? null : type.name();
+    }
+}
@@ -0,0 +1,786 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Lays out tokens like {@link TokenPrinter}, but in a single forward pass.
+ *
+ * TokenPrinter prints optimistically and rewinds to a repair point when a
+ * line overflows. This printer holds back the tokens that follow an
+ * undecided break point instead, and decides the point as soon as one of
+ * these happens:
+ * <ul>
+ * <li>a later point of equal or higher priority arrives (no break),
+ * <li>the held back text no longer fits on the line (break),
+ * <li>a hard newline arrives (break if the point outranks the newline).
+ * </ul>
+ * Undecided points always have strictly decreasing priorities, so the one
+ * TokenPrinter would pick is always the first. Only about one line of text
+ * is ever held back. It is rescanned only when a break moves it to the
+ * right, which can turn an earlier "fits" into an overflow.
+ */
+public class LinearTokenPrinter implements TokenVisitor {
+
+    private static final String NL = String.format("%n");
+    private final StringBuilder buf = new StringBuilder();
+    private final List<Token> tokens;
+    private final Appendable writer;
+    private IOException error = null;
+    private int tokenIndex = 0;
+    private int limit = 80;
+    private int indentSpace = 2;
+    private Renderer renderer = Renderer.HTML;
+
+    // Layout state of the printed text.
+    private int lineLength = 0;
+    private int currentIndent = 0;
+    private int continuationSpace = 0;
+    private SavedIndent savedIndent = new SavedIndent();
+    private ListState list = new NoList();
+    private Renderer.OpenStyle styles = null;
+    private final SourceMap sourceMap = new SourceMap();
+    private SourceMap.OpenNode openNodes = null;
+    private int lineStart = 0;
+    private final TokenVisitor committer = new Committer();
+
+    // Tokens and break points that have been scanned but not printed.
+    private final ArrayDeque<Object> held = new ArrayDeque<>();
+    private final ArrayDeque<BreakPoint> undecided = new ArrayDeque<>();
+    private final ArrayDeque<Token> replay = new ArrayDeque<>();
+    private OpenList openLists = null;
+    private int scanned = 0;
+    private int depth = 0;
+    private int width = 0;
+    private int strings = 0;
+    private int texts = 0;
+    private int textEnd = 0;
+    private int textIndex = 0;
+
+    public LinearTokenPrinter(List<Token> tokens) {
+        this(tokens, null);
+    }
+
+    /**
+     * Creates a printer that streams to writer. Committed lines are written
+     * as soon as they end, and scanned tokens are removed from tokens.
+     * Call {@link #finish()} to write the last line.
+     */
+    public LinearTokenPrinter(List<Token> tokens, Appendable writer) {
+        this.tokens = tokens;
+        this.writer = writer;
+    }
+
+    /**
+     * Returns the printed text. When streaming this is only the text that
+     * has not been written yet.
+     */
+    public String toString() {
+        printTokens();
+        decideAll();
+        return buf.toString();
+    }
+
+    /**
+     * Returns the map from the printed text back to the nodes that were
+     * marked in the tokens.
+     */
+    public SourceMap getSourceMap() {
+        printTokens();
+        decideAll();
+        return sourceMap;
+    }
+
+    /**
+     * Prints the rest of the tokens and writes any text still buffered.
+     */
+    public void finish() throws IOException {
+        printTokens();
+        decideAll();
+        write();
+        if (writer instanceof Flushable) {
+            ((Flushable) writer).flush();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Scans the tokens added since the last call. Text after an undecided
+     * break point stays held back until more tokens arrive.
+     */
+    void printTokens() {
+        while (true) {
+            Token t;
+            if (!replay.isEmpty()) {
+                t = replay.removeFirst();
+            } else if (tokenIndex < tokens.size()) {
+                t = tokens.get(tokenIndex);
+                ++tokenIndex;
+            } else {
+                break;
+            }
+            t.accept(this);
+            ++scanned;
+        }
+    }
+
+    private void write() {
+        if (writer == null) {
+            return;
+        }
+        if (error == null) {
+            try {
+                writer.append(buf);
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+        buf.setLength(0);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public int getIndentSpace() {
+        return indentSpace;
+    }
+
+    public void setIndentSpace(int indentSpace) {
+        this.indentSpace = indentSpace;
+    }
+
+    public Renderer getRenderer() {
+        return renderer;
+    }
+
+    public void setRenderer(Renderer renderer) {
+        this.renderer = renderer;
+    }
+
+    @Override
+    public void visitString(StringToken t) {
+        if (undecided.isEmpty()) {
+            t.accept(committer);
+            return;
+        }
+        held.add(t);
+        width += t.length();
+        strings += 1;
+        texts += 1;
+        textEnd = width;
+        textIndex = scanned;
+        while (!undecided.isEmpty() && overflows()) {
+            breakFirst();
+        }
+    }
+
+    @Override
+    public void visitNewline(NewlineToken t) {
+        hardBreak(t);
+    }
+
+    @Override
+    public void visitIndent(IndentToken t) {
+        hardBreak(t);
+    }
+
+    @Override
+    public void visitDedent(DedentToken t) {
+        hardBreak(t);
+    }
+
+    @Override
+    public void visitSoftNewline(SoftNewlineToken t) {
+        addPoint(new SoftBreak(t, Math.scalb(1.0, -depth)));
+    }
+
+    @Override
+    public void visitListSeparator(ListSeparatorToken t) {
+        addPoint(new ListItemBreak(t, Math.scalb(2.0, -depth)));
+    }
+
+    @Override
+    public void visitListStart(ListStartToken t) {
+        depth += 1;
+        BreakPoint point = new ListBreak(t, Math.scalb(3.0, -depth));
+        openLists = new OpenList(point, openLists);
+        addPoint(point);
+    }
+
+    @Override
+    public void visitSoftLParen(SoftLParenToken t) {
+        depth += 1;
+        BreakPoint point = new SoftParenBreak(t, Math.scalb(3.0, -depth));
+        openLists = new OpenList(point, openLists);
+        addPoint(point);
+    }
+
+    @Override
+    public void visitListEnd(ListEndToken t) {
+        endList(t);
+    }
+
+    @Override
+    public void visitSoftRParen(SoftRParenToken t) {
+        endList(t);
+    }
+
+    @Override
+    public void visitNodeStart(NodeStartToken t) {
+        hold(t);
+    }
+
+    @Override
+    public void visitNodeEnd(NodeEndToken t) {
+        hold(t);
+    }
+
+    private void endList(Token t) {
+        if (openLists == null) {
+            throw new IllegalStateException();
+        }
+        depth -= 1;
+        openLists.point.close(scanned);
+        openLists = openLists.next;
+        hold(t);
+    }
+
+    private void hold(Token t) {
+        if (undecided.isEmpty()) {
+            t.accept(committer);
+        } else {
+            held.add(t);
+        }
+    }
+
+    private void addPoint(BreakPoint point) {
+        while (!undecided.isEmpty() && outranks(point, undecided.getLast())) {
+            undecided.removeLast().decided = true;
+        }
+        flush();
+        point.openLists = openLists;
+        undecided.add(point);
+        held.add(point);
+    }
+
+    /**
+     * Returns true if TokenPrinter would never repair point while later is
+     * on the same line. Ties go to the later point unless it is already
+     * past the limit.
+     */
+    private boolean outranks(BreakPoint later, BreakPoint point) {
+        if (later.priority != point.priority) {
+            return later.priority > point.priority;
+        }
+        later.tied = true;
+        int laterPos = linePos(later);
+        return laterPos <= limit || laterPos == linePos(point);
+    }
+
+    private int linePos(BreakPoint point) {
+        BreakPoint first = undecided.getFirst();
+        if (lineLength == 0 && point.texts == first.texts) {
+            return 0;
+        }
+        return column() + point.position - first.position;
+    }
+
+    private void hardBreak(Token t) {
+        double newlinePriority = Math.scalb(1.5, -depth);
+        while (!undecided.isEmpty()) {
+            boolean forced = undecided.getFirst().priority > newlinePriority;
+            if (forced) {
+                skipTies();
+            }
+            if (forced || overflows()) {
+                if (breakFirst()) {
+                    replay.addLast(t);
+                    return;
+                }
+            } else {
+                break;
+            }
+        }
+        decideAll();
+        t.accept(committer);
+    }
+
+    /**
+     * A newline repairs the last of several points with the same priority.
+     */
+    private void skipTies() {
+        BreakPoint first = undecided.removeFirst();
+        while (!undecided.isEmpty()
+                && undecided.getFirst().priority == first.priority) {
+            first.decided = true;
+            flush();
+            first = undecided.removeFirst();
+        }
+        undecided.addFirst(first);
+    }
+
+    private boolean overflows() {
+        BreakPoint first = undecided.getFirst();
+        if (strings == first.strings) {
+            return false;
+        }
+        return column() + textEnd - first.position > limit;
+    }
+
+    /**
+     * Breaks the line at the first undecided point.
+     *
+     * @return true if the held back tokens have to be scanned again
+     */
+    private boolean breakFirst() {
+        BreakPoint point = undecided.removeFirst();
+        point.decided = true;
+        point.broken = true;
+        held.removeFirst();
+        int before = column();
+        point.print();
+        if (!isStale(column() - before, point.widens())) {
+            flush();
+            return false;
+        }
+        while (!held.isEmpty()) {
+            Object next = held.removeLast();
+            if (next instanceof BreakPoint) {
+                replay.addFirst(((BreakPoint) next).token);
+            } else {
+                replay.addFirst((Token) next);
+            }
+        }
+        undecided.clear();
+        depth = point.depth;
+        openLists = point.openLists;
+        return true;
+    }
+
+    /**
+     * Returns true if moving the held back text by shift columns, or
+     * widening part of it, could change a decision already made for it.
+     * Moving text right can make a point overflow before the point that
+     * outranked it, and ties depend on exact columns.
+     */
+    private boolean isStale(int shift, boolean widened) {
+        if (shift == 0 && !widened) {
+            return false;
+        }
+        for (Object next : held) {
+            if (next instanceof BreakPoint) {
+                BreakPoint point = (BreakPoint) next;
+                if (point.tied || ((shift > 0 || widened) && point.decided)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void decideAll() {
+        for (BreakPoint point : undecided) {
+            point.decided = true;
+        }
+        undecided.clear();
+        flush();
+    }
+
+    /**
+     * Prints held back tokens up to the first undecided break point.
+     */
+    private void flush() {
+        while (!held.isEmpty()) {
+            Object next = held.getFirst();
+            if (next instanceof BreakPoint) {
+                BreakPoint point = (BreakPoint) next;
+                if (!point.decided) {
+                    return;
+                }
+                held.removeFirst();
+                point.print();
+            } else {
+                held.removeFirst();
+                ((Token) next).accept(committer);
+            }
+        }
+    }
+
+    private void maybeIndent() {
+        if (lineLength == 0) {
+            int indent = getIndent();
+            for (int i = 0; i < indent; ++i) {
+                buf.append(' ');
+            }
+            lineLength += indent;
+        }
+    }
+
+    private void endLine() {
+        continuationSpace = savedIndent.continuation;
+        startLine();
+    }
+
+    private void startLine() {
+        buf.append(NL);
+        lineStart += lineLength + 1;
+        lineLength = 0;
+        if (writer != null) {
+            write();
+            if (tokenIndex >= tokens.size() - tokenIndex) {
+                tokens.subList(0, tokenIndex).clear();
+                tokenIndex = 0;
+            }
+        }
+    }
+
+    private void indent(int amount) {
+        savedIndent = new SavedIndent();
+        currentIndent += amount;
+    }
+
+    private void dedent() {
+        savedIndent.restore();
+    }
+
+    private int getIndent() {
+        return currentIndent + continuationSpace;
+    }
+
+    /**
+     * Returns the column where the held back text starts. On an empty line
+     * that is the indent in effect when the first text is printed, after
+     * any held wrapped lists before it have been closed.
+     */
+    private int column() {
+        if (lineLength > 0) {
+            return lineLength;
+        }
+        SavedIndent saved = savedIndent;
+        int indent = getIndent();
+        ListState open = list;
+        int flatLists = 0;
+        for (Object next : held) {
+            if (next instanceof StringToken) {
+                break;
+            } else if (next instanceof ListBreak) {
+                flatLists += 1;
+            } else if (next instanceof ListEndToken || next instanceof SoftRParenToken) {
+                if (flatLists > 0) {
+                    flatLists -= 1;
+                } else if (open instanceof SoftParenList) {
+                    break;
+                } else if (open instanceof WrappedList) {
+                    indent = saved.indent + saved.continuation;
+                    saved = saved.previous;
+                    open = ((WrappedList) open).previous;
+                } else if (open instanceof SingleLineList) {
+                    open = ((SingleLineList) open).previous;
+                }
+            }
+        }
+        return indent;
+    }
+
+    /**
+     * Prints tokens once every break point before them has been decided.
+     */
+    class Committer implements TokenVisitor {
+
+        @Override
+        public void visitString(StringToken t) {
+            maybeIndent();
+            styles = t.render(renderer, styles, buf);
+            lineLength += t.length();
+        }
+
+        @Override
+        public void visitNewline(NewlineToken t) {
+            endLine();
+        }
+
+        @Override
+        public void visitIndent(IndentToken t) {
+            savedIndent = new SavedIndent();
+            endLine();
+            currentIndent += indentSpace;
+        }
+
+        @Override
+        public void visitDedent(DedentToken t) {
+            endLine();
+            dedent();
+        }
+
+        @Override
+        public void visitListEnd(ListEndToken t) {
+            list.endList();
+        }
+
+        @Override
+        public void visitSoftRParen(SoftRParenToken t) {
+            list.endList();
+        }
+
+        @Override
+        public void visitNodeStart(NodeStartToken t) {
+            int offset = lineStart + (lineLength == 0 ? getIndent() : lineLength);
+            sourceMap.start(offset, t.getNode());
+            openNodes = new SourceMap.OpenNode(t.getNode(), openNodes);
+        }
+
+        @Override
+        public void visitNodeEnd(NodeEndToken t) {
+            SourceMap.OpenNode parent = openNodes.previous;
+            sourceMap.end(lineStart + lineLength, parent == null ? null : parent.node);
+            openNodes = parent;
+        }
+
+        @Override
+        public void visitSoftNewline(SoftNewlineToken t) {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public void visitListSeparator(ListSeparatorToken t) {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public void visitListStart(ListStartToken t) {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public void visitSoftLParen(SoftLParenToken t) {
+            throw new IllegalStateException();
+        }
+    }
+
+    class SavedIndent {
+        protected final SavedIndent previous = savedIndent;
+        private final int indent = currentIndent;
+        private final int continuation = continuationSpace;
+
+        void restore() {
+            currentIndent = indent;
+            continuationSpace = continuation;
+            savedIndent = previous;
+        }
+    }
+
+    abstract class BreakPoint {
+        protected final Token token;
+        protected final double priority;
+        protected final int index = scanned;
+        protected final int depth = LinearTokenPrinter.this.depth;
+        protected final int strings = LinearTokenPrinter.this.strings;
+        protected int texts = LinearTokenPrinter.this.texts;
+        protected int position = width;
+        protected OpenList openLists;
+        protected boolean decided = false;
+        protected boolean broken = false;
+        protected boolean tied = false;
+
+        BreakPoint(Token token, double priority) {
+            this.token = token;
+            this.priority = priority;
+        }
+
+        /**
+         * Called when the list opened by this point is closed.
+         */
+        void close(int index) {
+        }
+
+        /**
+         * Returns true if breaking here made held back text wider.
+         */
+        boolean widens() {
+            return false;
+        }
+
+        abstract void print();
+    }
+
+    class SoftBreak extends BreakPoint {
+
+        SoftBreak(Token token, double priority) {
+            super(token, priority);
+        }
+
+        @Override
+        void print() {
+            if (broken) {
+                startLine();
+                continuationSpace = savedIndent.continuation + indentSpace * 2;
+            }
+        }
+    }
+
+    class ListItemBreak extends BreakPoint {
+
+        ListItemBreak(Token token, double priority) {
+            super(token, priority);
+        }
+
+        @Override
+        void print() {
+            if (broken) {
+                startLine();
+                continuationSpace = savedIndent.continuation;
+            }
+        }
+    }
+
+    class ListBreak extends BreakPoint {
+
+        ListBreak(Token token, double priority) {
+            super(token, priority);
+        }
+
+        @Override
+        void print() {
+            if (broken) {
+                startLine();
+                indent(indentSpace * 2);
+                list = new WrappedList();
+            } else {
+                list = new SingleLineList();
+            }
+        }
+    }
+
+    class SoftParenBreak extends ListBreak {
+        private int closedAt = -1;
+
+        SoftParenBreak(Token token, double priority) {
+            super(token, priority);
+        }
+
+        @Override
+        void close(int index) {
+            if (!decided) {
+                closedAt = index;
+            } else if (broken) {
+                width += 1;
+                LinearTokenPrinter.this.texts += 1;
+            }
+        }
+
+        @Override
+        boolean widens() {
+            return closedAt != -1;
+        }
+
+        @Override
+        void print() {
+            if (!broken) {
+                super.print();
+                return;
+            }
+            maybeIndent();
+            buf.append("(");
+            super.print();
+            list = new SoftParenList(list);
+            if (closedAt != -1) {
+                // The closing paren was scanned as invisible, so make room
+                // for it in front of every point that follows it.
+                width += 1;
+                LinearTokenPrinter.this.texts += 1;
+                if (textIndex > closedAt) {
+                    textEnd += 1;
+                }
+                for (BreakPoint point : undecided) {
+                    if (point.index > closedAt) {
+                        point.position += 1;
+                        point.texts += 1;
+                    }
+                }
+            }
+        }
+    }
+
+    static class OpenList {
+        final BreakPoint point;
+        final OpenList next;
+
+        OpenList(BreakPoint point, OpenList next) {
+            this.point = point;
+            this.next = next;
+        }
+    }
+
+    interface ListState {
+
+        void endList();
+    }
+
+    class NoList implements ListState {
+
+        @Override
+        public void endList() {
+            throw new IllegalStateException();
+        }
+    }
+
+    class SingleLineList implements ListState {
+        private final ListState previous = list;
+
+        @Override
+        public void endList() {
+            list = previous;
+        }
+    }
+
+    class WrappedList implements ListState {
+        private final ListState previous = list;
+
+        @Override
+        public void endList() {
+            dedent();
+            list = previous;
+        }
+    }
+
+    class SoftParenList implements ListState {
+        private final ListState wrapped;
+
+        SoftParenList(ListState wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public void endList() {
+            maybeIndent();
+            buf.append(")");
+            lineLength += 1;
+            wrapped.endList();
+        }
+    }
+}
@@ -16,12 +16,19 @@
  
 package org.mirah.jvm.mirrors.debug.prettyprint;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.lang.model.SourceVersion;
 import mirah.lang.ast.Annotation;
 import mirah.lang.ast.AnnotationList;
@@ -92,8 +99,45 @@ import mirah.lang.ast.ZSuper;
 
 public class MirahSourceGenerator extends SimpleNodeVisitor {
 
-    private final List<Token> tokens = new ArrayList<>();
-    protected final TokenPrinter out = new TokenPrinter(tokens);
+    /**
+     * How the tree is walked. RECURSIVE visits each child as it is reached.
+     * ITERATIVE does too until the nodes are MAX_DEPTH deep, and from there
+     * has each visit method queue its text and children on an explicit
+     * stack instead, so deeply nested trees can't overflow the Java stack.
+     * Both produce the same tokens.
+     */
+    public enum Traversal {
+        RECURSIVE, ITERATIVE
+    }
+
+    private final TokenBuffer tokens = new TokenBuffer();
+    private final Map<String, Token> spans = new HashMap<>();
+    private final boolean streaming;
+    private Traversal traversal = Traversal.ITERATIVE;
+    private InferredTypes types = null;
+    // The work queued in ITERATIVE mode: tokens, text, nodes, conditions,
+    // and STYLED followed by a style and text. Each frame is the range of
+    // items queued by one node, and the position of the next one to do.
+    private static final Object STYLED = new Object();
+    private static final int MAX_DEPTH = 128;
+    private int depth = 0;
+    private Object[] work = new Object[64];
+    private int workSize = 0;
+    private int[] frameStart = new int[16];
+    private int[] frameEnd = new int[16];
+    private int[] framePos = new int[16];
+    private int frames = 0;
+    private boolean collecting = false;
+    // Whether the node being visited has queued a child. Until it does, its
+    // tokens come next and are added right away.
+    private boolean queueing = false;
+    protected final TokenPrinter out;
+    // The tokens made by s() and kw(), by style and value. Must come before
+    // the tokens below that are made with kw().
+    private static final int MAX_SHARED = 4096;
+    private static final ConcurrentMap<String, ConcurrentMap<String, Token>> SHARED =
+            new ConcurrentHashMap<>();
+    private static final AtomicInteger SHARED_COUNT = new AtomicInteger();
     protected static final Token NL = new NewlineToken();
     protected static final Token NBR = new SoftNewlineToken();
     protected static final Token LIST = new ListStartToken();
@@ -103,16 +147,102 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
     protected static final Token DEDENT = new DedentToken();
     protected static final Token SLP = new SoftLParenToken();
     protected static final Token SRP = new SoftRParenToken();
-    protected static final Token ST = new TagToken("</span>");
+    protected static final Token ST = new SpanEndToken();
     protected static final Token END = kw("end");
+    private static final Token NODE_END = new NodeEndToken();
+
+    public MirahSourceGenerator() {
+        this(null);
+    }
+
+    /**
+     * Creates a generator that prints as it goes, writing each finished line
+     * to writer instead of keeping every token until the end. The nodes
+     * aren't marked in the tokens, so its source map stays empty.
+     * Call {@link #finish()} once all the nodes have been visited.
+     */
+    public MirahSourceGenerator(Appendable writer) {
+        streaming = writer != null;
+        out = new TokenPrinter(tokens, writer);
+    }
 
     @Override
     public String toString() {
         return out.toString();
     }
 
+    /**
+     * Returns the map from the generated code to the nodes it came from.
+     */
+    public SourceMap getSourceMap() {
+        return out.getSourceMap();
+    }
+
+    public void finish() throws IOException {
+        out.finish();
+    }
+
+    TokenBuffer getTokens() {
+        return tokens;
+    }
+
+    public void setLimit(int limit) {
+        out.setLimit(limit);
+    }
+
+    public void setIndentSpace(int indentSpace) {
+        out.setIndentSpace(indentSpace);
+    }
+
+    public void setTraversal(Traversal traversal) {
+        this.traversal = traversal;
+    }
+
+    /**
+     * Annotates each expression with the type the typer inferred for it,
+     * and each method with its return type. Nodes without a type yet are
+     * printed as they are.
+     */
+    public void setTypes(InferredTypes types) {
+        this.types = types;
+    }
+
+    public void setLayout(TokenPrinter.Layout layout) {
+        out.setLayout(layout);
+    }
+
+    /**
+     * Chooses how the code is written out. The default is HTML.
+     */
+    public void setRenderer(Renderer renderer) {
+        out.setRenderer(renderer);
+    }
+
+    /**
+     * Returns the token for value in style. Tokens are shared, up to
+     * MAX_SHARED of them, since keywords are made on every use.
+     */
     protected static Token s(String style, String value) {
-        return new StyledToken(style, value);
+        ConcurrentMap<String, Token> values = SHARED.get(style);
+        if (values == null) {
+            values = new ConcurrentHashMap<>();
+            ConcurrentMap<String, Token> existing = SHARED.putIfAbsent(style, values);
+            if (existing != null) {
+                values = existing;
+            }
+        }
+        Token t = values.get(value);
+        if (t == null) {
+            t = new StyledToken(style, value);
+            if (SHARED_COUNT.get() < MAX_SHARED) {
+                Token existing = values.putIfAbsent(value, t);
+                if (existing != null) {
+                    return existing;
+                }
+                SHARED_COUNT.incrementAndGet();
+            }
+        }
+        return t;
     }
 
     protected static Token kw(String value) {
@@ -120,32 +250,64 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
     }
 
     protected Token span(String style) {
-        return new TagToken("<span class=" + style + ">");
+        Token t = spans.get(style);
+        if (t == null) {
+            t = new SpanToken(style);
+            spans.put(style, t);
+        }
+        return t;
     }
 
     protected Object add(final String identifier) {
-        if (identifier != null) {
-            tokens.add(new EscapedToken(identifier));
+        if (identifier == null) {
+            return null;
+        } else if (collecting && queueing) {
+            queue(identifier);
+            return null;
         }
+        tokens.addText(identifier);
+        added();
         return null;
     }
 
     protected Object add(String format, Object... args) {
-        tokens.add(new EscapedToken(String.format(format, args)));
+        return add(String.format(format, args));
+    }
+
+    protected Object addStyled(String style, String value) {
+        if (collecting && queueing) {
+            queue(STYLED);
+            queue(style);
+            queue(value);
+            return null;
+        }
+        tokens.addStyled(style, value);
+        added();
         return null;
     }
 
     protected Object add(Token t) {
+        if (collecting && queueing) {
+            queue(t);
+            return null;
+        }
         tokens.add(t);
+        added();
         return null;
     }
 
+    private void added() {
+        if (streaming) {
+            out.printTokens();
+        }
+    }
+
     protected Object addAll(Object... args) {
         for (Object arg : args) {
             if (arg instanceof Token) {
                 add((Token) arg);
             } else if (arg instanceof String) {
-                add(new EscapedToken((String) arg));
+                add((String) arg);
             } else {
                 format((Node) arg);
             }
@@ -166,7 +328,7 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
 
     @Override
     public Object visitZSuper(ZSuper zsuper, Object o) {
-        return add(kw("super"));
+        return addStyled("kw", "super");
     }
 
     private void formatAll(TypeNameList items, Token separator) {
@@ -188,7 +350,7 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
         Iterator it = items.iterator();
         while (it.hasNext()) {
             Node n = (Node) it.next();
-            n.accept(this, null);
+            format(n);
             if (it.hasNext()) {
                 add(separator);
                 if (!(separator instanceof NewlineToken)) {
@@ -199,12 +361,175 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
     }
 
     private Object format(Node n) {
-        if (n != null) {
+        if (n == null) {
+            return null;
+        }
+        if (mustQueue()) {
+            return schedule(n);
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+        ++depth;
+        // Nodes made up on the fly, like TypeRefs, can't be selected.
+        if (n.parent() == null) {
             n.accept(this, null);
+        } else {
+            if (!streaming) {
+                add(new NodeStartToken(n));
+            }
+            n.accept(this, null);
+            String type = inferredType(n);
+            if (type != null) {
+                addStyled("itype", type);
+            }
+            if (!streaming) {
+                add(NODE_END);
+            }
+        }
+        --depth;
+        return null;
+    }
+
+    /**
+     * Returns the annotation for an expression, or null if it has no type
+     * or isn't one.
+     */
+    private String inferredType(Node n) {
+        if (types == null || n instanceof NodeList || n instanceof Script
+                || n instanceof ClassDefinition || n instanceof MethodDefinition
+                || n instanceof Block || n instanceof Arguments
+                || n instanceof RequiredArgument || n instanceof OptionalArgument
+                || n instanceof Import || n instanceof Package
+                || n instanceof Annotation || n instanceof AnnotationList
+                || n instanceof HashEntry || n instanceof Noop
+                || n instanceof ImplicitNil || n instanceof ImplicitSelf) {
+            return null;
+        }
+        String type = types.get(n);
+        return type == null ? null : "/*:" + type + "*/";
+    }
+
+    /**
+     * Returns true if a child has to be queued rather than visited now:
+     * when the stack is deep enough, or once an earlier sibling has been.
+     */
+    private boolean mustQueue() {
+        return traversal == Traversal.ITERATIVE
+                && (depth >= MAX_DEPTH || collecting && queueing);
+    }
+
+    /**
+     * Queues n and its node markers. Outside of {@link #drain} this also
+     * does the work, so the visit method that called it can carry on with
+     * the next token.
+     */
+    private Object schedule(Object n) {
+        boolean marked = n instanceof Node && ((Node) n).parent() != null;
+        if (marked && !streaming) {
+            add(new NodeStartToken((Node) n));
+        }
+        int mark = workSize;
+        queueing = true;
+        queue(n);
+        if (marked) {
+            String type = inferredType((Node) n);
+            if (type != null) {
+                queue(STYLED);
+                queue("itype");
+                queue(type);
+            }
+            if (!streaming) {
+                queue(NODE_END);
+            }
+        }
+        if (!collecting) {
+            drain(mark);
         }
         return null;
     }
 
+    private void queue(Object item) {
+        if (workSize == work.length) {
+            work = Arrays.copyOf(work, workSize * 2);
+        }
+        work[workSize++] = item;
+    }
+
+    /**
+     * Does the work queued from mark on. Visiting a queued node queues its
+     * tokens and children as a new frame, which is done before the rest of
+     * the frame it came from.
+     */
+    private void drain(int mark) {
+        int savedDepth = depth;
+        collecting = true;
+        pushFrame(mark);
+        try {
+            while (frames > 0) {
+                int top = frames - 1;
+                int pos = framePos[top];
+                if (pos == frameEnd[top]) {
+                    workSize = frameStart[top];
+                    Arrays.fill(work, workSize, frameEnd[top], null);
+                    --frames;
+                    continue;
+                }
+                Object item = work[pos];
+                framePos[top] = pos + 1;
+                if (item instanceof String) {
+                    tokens.addText((String) item);
+                    added();
+                } else if (item instanceof Token) {
+                    tokens.add((Token) item);
+                    added();
+                } else if (item == STYLED) {
+                    tokens.addStyled((String) work[pos + 1], (String) work[pos + 2]);
+                    framePos[top] = pos + 3;
+                    added();
+                } else if (item instanceof Node) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new CancellationException();
+                    }
+                    int start = workSize;
+                    queueing = false;
+                    depth = 0;
+                    ((Node) item).accept(this, null);
+                    pushFrame(start);
+                } else {
+                    Condition c = (Condition) item;
+                    int start = workSize;
+                    queueing = false;
+                    depth = 0;
+                    formatSubConditionNow(c.node, c.op);
+                    pushFrame(start);
+                }
+            }
+        } finally {
+            collecting = false;
+            queueing = false;
+            depth = savedDepth;
+            frames = 0;
+            Arrays.fill(work, mark, workSize, null);
+            workSize = mark;
+        }
+    }
+
+    private void pushFrame(int start) {
+        if (start == workSize) {
+            return;
+        }
+        if (frames == frameStart.length) {
+            frameStart = Arrays.copyOf(frameStart, frames * 2);
+            frameEnd = Arrays.copyOf(frameEnd, frames * 2);
+            framePos = Arrays.copyOf(framePos, frames * 2);
+        }
+        frameStart[frames] = start;
+        frameEnd[frames] = workSize;
+        framePos[frames] = start;
+        ++frames;
+    }
+
     @Override
     public Object visitFunctionalCall(FunctionalCall fc, Object o) {
         final String name = fc.name().identifier();
@@ -280,11 +605,11 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
     @Override
     public Object visitIf(If i, Object o) {
         if (i.body_size() == 0) {
-            add(kw("unless "));
+            addStyled("kw", "unless ");
             formatCondition(i.condition());
             return addAll(INDENT, i.elseBody(), DEDENT, END);
         }
-        add(kw("if "));
+        addStyled("kw", "if ");
         formatCondition(i.condition());
         addAll(INDENT, i.body(), DEDENT);
         if (i.elseBody_size() > 0) {
@@ -337,22 +662,22 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
 
     @Override
     public Object visitBreak(Break b, Object o) {
-        return add(kw("break"));
+        return addStyled("kw", "break");
     }
 
     @Override
     public Object visitNext(Next next, Object o) {
-        return add(kw("next"));
+        return addStyled("kw", "next");
     }
 
     @Override
     public Object visitRedo(Redo redo, Object o) {
-        return add(kw("redo"));
+        return addStyled("kw", "redo");
     }
 
     @Override
     public Object visitImport(Import i, Object o) {
-        add(kw("import "));
+        addStyled("kw", "import ");
         String fullname = i.fullName().identifier();
         String shortname = i.simpleName().identifier();
         if ("*".equals(shortname)) {
@@ -380,20 +705,20 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
 
     @Override
     public Object visitFixnum(Fixnum fixnum, Object o) {
-        return add(s("num", "" + fixnum.value()));
+        return addStyled("num", "" + fixnum.value());
     }
 
     @Override
     public Object visitFloat(Float f, Object o) {
-        return add(s("num", "" + f.value()));
+        return addStyled("num", "" + f.value());
     }
 
     @Override
     public Object visitCharLiteral(CharLiteral cl, Object o) {
         if (Character.isUnicodeIdentifierPart(cl.value())) {
-            return add(s("num", String.format("?%c", cl.value())));
+            return addStyled("num", String.format("?%c", cl.value()));
         } else {
-            return add(s("num", String.format("?\\U%8x", cl.value())));
+            return addStyled("num", String.format("?\\U%8x", cl.value()));
         }
     }
 
@@ -405,32 +730,32 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
 
     @Override
     public Object visitSymbol(Symbol symbol, Object o) {
-        return add(s("sym", ":" + symbol.value()));
+        return addStyled("sym", ":" + symbol.value());
     }
 
     @Override
     public Object visitBoolean(Boolean bln, Object o) {
-        return add(s("const", "" + bln.value()));
+        return addStyled("const", "" + bln.value());
     }
 
     @Override
     public Object visitNull(Null n, Object o) {
-        return add(s("const", "nil"));
+        return addStyled("const", "nil");
     }
 
     @Override
     public Object visitImplicitNil(ImplicitNil in, Object o) {
-        return add(s("const", "nil"));
+        return addStyled("const", "nil");
     }
 
     @Override
     public Object visitSelf(Self self, Object o) {
-        return add(s("const", "self"));
+        return addStyled("const", "self");
     }
 
     @Override
     public Object visitImplicitSelf(ImplicitSelf is, Object o) {
-        return add(s("const", "self"));
+        return addStyled("const", "self");
     }
 
     @Override
@@ -440,13 +765,13 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
 
     @Override
     public Object visitScript(Script script, Object o) {
-        add(new TagToken("<style>pre{font:12pt Monaco,Monospace}.err{color:#ffffff;background-color:#990000}.var{color: #318495}.kw{color:#0000FF;font-weight:bold}.num{color:#0000CD}.sym{color:#C5060B;font-weight:bold}.const{color:#585CF6;font-weight:bold}.str{color:#036A07}.source{color:#26B31A}.fname{color:#0000A2;font-weight:bold}.cname{text-decoration:underline}.type{color:#70727E;font-style:normal}.cast{color:#3C4C72;font-weight:bold}.scname{font-style:italic}.param{font-style:italic}</style><pre>"));
+        add(new TagToken("<style>pre{font:12pt Monaco,Monospace}.err{color:#ffffff;background-color:#990000}.var{color: #318495}.kw{color:#0000FF;font-weight:bold}.num{color:#0000CD}.sym{color:#C5060B;font-weight:bold}.const{color:#585CF6;font-weight:bold}.str{color:#036A07}.source{color:#26B31A}.fname{color:#0000A2;font-weight:bold}.cname{text-decoration:underline}.type{color:#70727E;font-style:normal}.cast{color:#3C4C72;font-weight:bold}.scname{font-style:italic}.param{font-style:italic}.itype{color:#A0A2AE;font-style:italic}</style><pre>"));
         return visitNodeList(script.body(), o);
     }
 
     @Override
     public Object visitSimpleString(SimpleString ss, Object o) {
-        return add(s("str", String.format("'%s'", ss.value().replace("\\", "\\\\").replace("'", "\\'"))));
+        return addStyled("str", String.format("'%s'", ss.value().replace("\\", "\\\\").replace("'", "\\'")));
     }
 
     @Override
@@ -486,7 +811,7 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
 
     @Override
     public Object visitRaise(Raise raise, Object o) {
-        add(kw("raise "));
+        addStyled("kw", "raise ");
         formatAll(raise.args());
         return null;
     }
@@ -508,7 +833,7 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
     @Override
     public Object visitConstant(Constant cnstnt, Object o) {
         String name = cnstnt.identifier();
-        return add(s("const", name));
+        return addStyled("const", name);
     }
 
     @Override
@@ -620,6 +945,8 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
         addAll(node.name().identifier(), ST, "(", LIST, node.arguments(), LI, ")", LIST_END);
         if (node.type() != null) {
             addAll(span("type"), ":", node.type().typeref(), ST);
+        } else if (types != null && types.get(node) != null) {
+            addStyled("itype", ":" + types.get(node));
         }
         return addAll(INDENT, node.body(), DEDENT, END, NL);
     }
@@ -635,7 +962,7 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
 
     @Override
     public Object visitRequiredArgument(RequiredArgument node, Object arg) {
-        add(s("param", node.name().identifier()));
+        addStyled("param", node.name().identifier());
         if (node.type() != null) {
             addAll(span("type"), ":", node.type().typeref(), ST);
         }
@@ -674,7 +1001,7 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
 
     @Override
     public Object visitBlock(Block node, Object arg) {
-        add(kw(" do"));
+        addStyled("kw", " do");
         List<Node> args = collectArguments(node.arguments());
         if (args.size() > 0) {
             addAll(" ", NBR, "|", LIST, node.arguments(), LI, "|", LIST_END);
@@ -723,7 +1050,7 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
 
     @Override
     public Object visitRescueClause(RescueClause node, Object arg) {
-        add(kw("rescue"));
+        addStyled("kw", "rescue");
         for (int i = 0; i < node.types_size(); ++i) {
             TypeName t = node.types(i);
             if (i > 0) {
@@ -823,6 +1150,16 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
     }
 
     private void formatSubCondition(Node n, String op) {
+        if (mustQueue()) {
+            schedule(new Condition(n, op));
+        } else {
+            ++depth;
+            formatSubConditionNow(n, op);
+            --depth;
+        }
+    }
+
+    private void formatSubConditionNow(Node n, String op) {
         while (n instanceof NodeList && ((NodeList) n).size() == 1) {
             n = ((NodeList) n).get(0);
         }
@@ -867,4 +1204,14 @@ public class MirahSourceGenerator extends SimpleNodeVisitor {
         }
         return false;
     }
+
+    private static final class Condition {
+        final Node node;
+        final String op;
+
+        Condition(Node node, String op) {
+            this.node = node;
+            this.op = op;
+        }
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Layouts of the same tokens for every width, worked out once.
+ *
+ * The tokens are split into groups at each line that starts outside of any
+ * list and continuation indent. The backtracking printer never rewinds past
+ * a line start, so such a line starts the same way whatever the limit and
+ * the groups can be laid out on their own. Each group is printed with no
+ * limit, then again with a limit one less than its longest line, down to
+ * {@link #MIN_WIDTH}. Of those candidates only the ones that need fewer
+ * lines than every narrower one are kept, so the text for a width is the
+ * widest candidate of each group that fits, with no printing at all. That
+ * is never more lines than the backtracking printer needs when its lines
+ * fit, and sometimes fewer, since it doesn't always find the best layout.
+ *
+ * Building the layouts stops with a CancellationException if the thread is
+ * interrupted.
+ *
+ * A group whose narrower layout ends inside a list can't be combined with
+ * the next one, so it is printed again together with the groups after it
+ * for that width.
+ */
+final class MultiWidthLayout {
+
+    // Narrower limits make every group wrap at each soft break, which
+    // hardly ever looks better.
+    static final int MIN_WIDTH = 10;
+
+    private final TokenPrinter base;
+    private final List<TokenPrinter.Checkpoint> starts = new ArrayList<>();
+    private final List<Candidate[]> groups = new ArrayList<>();
+    private final int size;
+    private int renderedWidth = -1;
+    private String text;
+    private SourceMap sourceMap;
+
+    MultiWidthLayout(TokenPrinter base) {
+        this.base = base;
+        TokenPrinter scan = base.copy(Integer.MAX_VALUE);
+        scan.keepLineStarts();
+        scan.printTokens();
+        size = scan.getTokenCount();
+        for (TokenPrinter.Checkpoint c : scan.getLineStarts()) {
+            if (c.isClean() && c.getToken() < size) {
+                starts.add(c);
+            }
+        }
+        for (int i = 0; i < starts.size(); ++i) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException();
+            }
+            groups.add(layOut(i));
+        }
+    }
+
+    /**
+     * Returns the text laid out for lines of at most width characters,
+     * where the tokens allow it.
+     */
+    synchronized String getText(int width) {
+        render(width);
+        return text;
+    }
+
+    synchronized SourceMap getSourceMap(int width) {
+        render(width);
+        return sourceMap;
+    }
+
+    int getTokenCount() {
+        return size;
+    }
+
+    private Candidate[] layOut(int group) {
+        TokenPrinter.Checkpoint start = starts.get(group);
+        int end = groupEnd(group);
+        List<Candidate> candidates = new ArrayList<>();
+        int limit = Integer.MAX_VALUE;
+        while (limit >= MIN_WIDTH) {
+            Candidate c = new Candidate(base.printLines(start, end, limit));
+            Candidate last = candidates.isEmpty() ? null : candidates.get(candidates.size() - 1);
+            limit = Math.min(limit, c.width) - 1;
+            if (last != null && (c.width > last.width
+                    || c.width == last.width && c.lines >= last.lines)) {
+                // The printer doesn't always find a narrower layout when
+                // there is one, so carry on with a smaller limit.
+                continue;
+            }
+            while (last != null && last.lines >= c.lines) {
+                // The narrower layout is at least as short.
+                candidates.remove(candidates.size() - 1);
+                last = candidates.isEmpty() ? null : candidates.get(candidates.size() - 1);
+            }
+            candidates.add(c);
+        }
+        return candidates.toArray(new Candidate[candidates.size()]);
+    }
+
+    private int groupEnd(int group) {
+        return group + 1 < starts.size() ? starts.get(group + 1).getToken() : size;
+    }
+
+    private void render(int width) {
+        if (width == renderedWidth) {
+            return;
+        }
+        StringBuilder out = new StringBuilder();
+        SourceMap map = new SourceMap();
+        int offset = 0;
+        for (int i = 0; i < groups.size(); ++i) {
+            Candidate c = choose(groups.get(i), width);
+            if (!c.clean && i + 1 < groups.size()) {
+                TokenPrinter p = base.printLines(starts.get(i), groupEnd(i), width);
+                while (!p.endsClean() && i + 1 < groups.size()) {
+                    p.printUntil(groupEnd(++i));
+                }
+                c = new Candidate(p);
+            }
+            out.append(c.text);
+            map.append(c.sourceMap, 0, offset);
+            offset += c.length;
+        }
+        text = out.toString();
+        sourceMap = map;
+        renderedWidth = width;
+    }
+
+    private static Candidate choose(Candidate[] candidates, int width) {
+        for (Candidate c : candidates) {
+            if (c.width <= width) {
+                return c;
+            }
+        }
+        return candidates[candidates.length - 1];
+    }
+
+    private static final class Candidate {
+        final int width;
+        final int lines;
+        final int length;
+        final boolean clean;
+        final String text;
+        final SourceMap sourceMap;
+
+        Candidate(TokenPrinter p) {
+            text = p.toString();
+            sourceMap = p.getSourceMap();
+            width = p.getWidth();
+            lines = p.getLineCount();
+            length = p.getVisibleLength();
+            clean = p.endsClean();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.NodeScanner;
+
+/**
+ * Visits the nodes of a tree in the same order as a {@link NodeScanner},
+ * but keeps the nodes still to visit on an explicit stack, so deeply nested
+ * trees can't overflow the Java stack.
+ *
+ * The children of each node are found by a scanner that doesn't go below
+ * them. Null children are skipped.
+ */
+public abstract class NodeWalker {
+
+    private Node[] stack = new Node[64];
+    // Whether the node at the same position is to be exited rather than
+    // entered.
+    private boolean[] exits = new boolean[64];
+    private int size = 0;
+    private Node parent;
+    private final List<Node> children = new ArrayList<>();
+    private final NodeScanner childScanner = new NodeScanner() {
+        @Override
+        public boolean enterDefault(Node node, Object arg) {
+            if (node == parent) {
+                return true;
+            } else if (node != null) {
+                children.add(node);
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Called before the children of node. Returns whether to visit them.
+     */
+    protected abstract boolean enter(Node node);
+
+    /**
+     * Called after the children of node, if {@link #enter} returned true.
+     */
+    protected void exit(Node node) {
+    }
+
+    public void walk(Node root) {
+        if (root == null) {
+            return;
+        }
+        push(root, false);
+        while (size > 0) {
+            --size;
+            Node node = stack[size];
+            boolean exit = exits[size];
+            stack[size] = null;
+            if (exit) {
+                exit(node);
+            } else if (enter(node)) {
+                push(node, true);
+                parent = node;
+                childScanner.scan(node);
+                parent = null;
+                for (int i = children.size() - 1; i >= 0; --i) {
+                    push(children.get(i), false);
+                }
+                children.clear();
+            }
+        }
+    }
+
+    private void push(Node node, boolean exit) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+            exits = Arrays.copyOf(exits, size * 2);
+        }
+        stack[size] = node;
+        exits[size] = exit;
+        ++size;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns text tokens into output. The printers only lay out visible text,
+ * so every renderer produces the same lines; they differ in how styles
+ * and markup are written.
+ */
+public enum Renderer {
+
+    /**
+     * Escaped text with styles as &lt;span&gt; tags, for a JTextPane.
+     */
+    HTML {
+        @Override
+        void text(String text, StringBuilder out) {
+            out.append(StyledToken.escape(text));
+        }
+
+        @Override
+        void styled(String style, String text, OpenStyle open, StringBuilder out) {
+            out.append("<span class='").append(style).append("'>");
+            text(text, out);
+            out.append("</span>");
+        }
+
+        @Override
+        void markup(String html, StringBuilder out) {
+            out.append(html);
+        }
+
+        @Override
+        void startStyle(String style, OpenStyle open, StringBuilder out) {
+            out.append("<span class=").append(style).append('>');
+        }
+
+        @Override
+        void endStyle(OpenStyle open, StringBuilder out) {
+            out.append("</span>");
+        }
+    },
+
+    /**
+     * The source text only.
+     */
+    PLAIN,
+
+    /**
+     * Text coloured with ANSI escape sequences, for a terminal.
+     */
+    ANSI {
+        @Override
+        void styled(String style, String text, OpenStyle open, StringBuilder out) {
+            String codes = ANSI_CODES.get(style);
+            if (codes == null) {
+                out.append(text);
+                return;
+            }
+            out.append("\033[").append(codes).append('m').append(text);
+            restore(open, out);
+        }
+
+        @Override
+        void startStyle(String style, OpenStyle open, StringBuilder out) {
+            String codes = ANSI_CODES.get(style);
+            if (codes != null) {
+                out.append("\033[").append(codes).append('m');
+            }
+        }
+
+        @Override
+        void endStyle(OpenStyle open, StringBuilder out) {
+            restore(open == null ? null : open.previous, out);
+        }
+
+        /**
+         * Resets the terminal and reapplies the styles that are still open.
+         */
+        private void restore(OpenStyle open, StringBuilder out) {
+            out.append("\033[0m");
+            apply(open, out);
+        }
+
+        private void apply(OpenStyle open, StringBuilder out) {
+            if (open != null) {
+                apply(open.previous, out);
+                startStyle(open.style, open.previous, out);
+            }
+        }
+    };
+
+    // Close to the colours of the HTML style sheet in visitScript.
+    private static final Map<String, String> ANSI_CODES = new HashMap<>();
+
+    static {
+        ANSI_CODES.put("err", "97;41");
+        ANSI_CODES.put("var", "36");
+        ANSI_CODES.put("kw", "1;34");
+        ANSI_CODES.put("num", "34");
+        ANSI_CODES.put("sym", "1;31");
+        ANSI_CODES.put("const", "1;35");
+        ANSI_CODES.put("str", "32");
+        ANSI_CODES.put("source", "92");
+        ANSI_CODES.put("fname", "1;34");
+        ANSI_CODES.put("cname", "4");
+        ANSI_CODES.put("type", "90");
+        ANSI_CODES.put("cast", "1;34");
+        ANSI_CODES.put("scname", "3");
+        ANSI_CODES.put("param", "3");
+        ANSI_CODES.put("itype", "2;3");
+    }
+
+    /**
+     * Appends text that is not markup.
+     */
+    void text(String text, StringBuilder out) {
+        out.append(text);
+    }
+
+    /**
+     * Appends text in a style. open is the enclosing style, if any.
+     */
+    void styled(String style, String text, OpenStyle open, StringBuilder out) {
+        out.append(text);
+    }
+
+    /**
+     * Appends raw HTML, which only the HTML renderer keeps.
+     */
+    void markup(String html, StringBuilder out) {
+    }
+
+    void startStyle(String style, OpenStyle open, StringBuilder out) {
+    }
+
+    /**
+     * Ends the innermost open style, or an unmatched one if open is null.
+     */
+    void endStyle(OpenStyle open, StringBuilder out) {
+    }
+
+    /**
+     * The styles started by {@link SpanToken}s and not yet ended, innermost
+     * first. Instances are immutable so printers can save and restore them.
+     */
+    static final class OpenStyle {
+        final String style;
+        final OpenStyle previous;
+
+        OpenStyle(String style, OpenStyle previous) {
+            this.style = style;
+            this.previous = previous;
+        }
+    }
+}
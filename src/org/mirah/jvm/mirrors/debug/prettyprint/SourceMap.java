@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import mirah.lang.ast.Node;
+
+/**
+ * Maps generated code back to the nodes that produced it.
+ *
+ * Offsets count visible characters, with each line break counted as one
+ * character like in a Swing Document, so they are the same for every
+ * {@link Renderer}. The map is a sorted list of events: each node start or
+ * end records the offset and the innermost node from there on. Finding the
+ * node at an offset is a binary search, and a node's range is a lookup in
+ * an index built on first use by pairing up the starts and ends.
+ */
+public class SourceMap {
+
+    private int[] offsets = new int[64];
+    private Node[] nodes = new Node[64];
+    private boolean[] starts = new boolean[64];
+    private int size = 0;
+    private Map<Node, int[]> index = null;
+
+    /**
+     * Returns the innermost node covering offset, or null.
+     */
+    public Node nodeAt(int offset) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] <= offset) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found == -1 ? null : nodes[found];
+    }
+
+    /**
+     * Returns the offset where node's code starts, or -1 if it was not
+     * printed.
+     */
+    public int getStart(Node node) {
+        int[] range = index().get(node);
+        return range == null ? -1 : range[0];
+    }
+
+    /**
+     * Returns the offset just past node's code, or -1 if it was not printed.
+     */
+    public int getEnd(Node node) {
+        int[] range = index().get(node);
+        return range == null ? -1 : range[1];
+    }
+
+    private Map<Node, int[]> index() {
+        if (index == null) {
+            index = new IdentityHashMap<>();
+            int[] open = new int[16];
+            int depth = 0;
+            for (int i = 0; i < size; ++i) {
+                if (starts[i]) {
+                    if (depth == open.length) {
+                        open = Arrays.copyOf(open, depth * 2);
+                    }
+                    open[depth++] = i;
+                } else if (depth > 0) {
+                    int start = open[--depth];
+                    if (!index.containsKey(nodes[start])) {
+                        index.put(nodes[start], new int[] {offsets[start], offsets[i]});
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Records the start of node.
+     */
+    void start(int offset, Node node) {
+        add(offset, node, true);
+    }
+
+    /**
+     * Records the end of the innermost node. parent is the node that is
+     * innermost after it.
+     */
+    void end(int offset, Node parent) {
+        add(offset, parent, false);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Forgets everything recorded after the first size events, when a
+     * printer backs up to reprint a line.
+     */
+    void truncate(int size) {
+        this.size = size;
+        index = null;
+    }
+
+    SourceMap copy() {
+        SourceMap copy = new SourceMap();
+        copy.offsets = Arrays.copyOf(offsets, size);
+        copy.nodes = Arrays.copyOf(nodes, size);
+        copy.starts = Arrays.copyOf(starts, size);
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Appends the events of other from event from on, moved by shift
+     * characters.
+     */
+    void append(SourceMap other, int from, int shift) {
+        for (int i = from; i < other.size; ++i) {
+            add(other.offsets[i] + shift, other.nodes[i], other.starts[i]);
+        }
+    }
+
+    private void add(int offset, Node node, boolean start) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            nodes = Arrays.copyOf(nodes, size * 2);
+            starts = Arrays.copyOf(starts, size * 2);
+        }
+        if (size > 0 && offset < offsets[size - 1]) {
+            // A node started at the indent of a line that got no text.
+            offset = offsets[size - 1];
+        }
+        offsets[size] = offset;
+        nodes[size] = node;
+        starts[size] = start;
+        index = null;
+        size++;
+    }
+
+    /**
+     * The nodes a printer has started and not yet ended, innermost first.
+     * Instances are immutable so printers can save and restore them.
+     */
+    static final class OpenNode {
+        final Node node;
+        final OpenNode previous;
+
+        OpenNode(Node node, OpenNode previous) {
+            this.node = node;
+            this.previous = previous;
+        }
+    }
+}
@@ -16,6 +16,8 @@
  
 package org.mirah.jvm.mirrors.debug.prettyprint;
 
+import mirah.lang.ast.Node;
+
 public interface Token {
     void accept(TokenVisitor l);
 }
@@ -31,6 +33,8 @@ interface TokenVisitor {
     void visitListEnd(ListEndToken t);
     void visitSoftLParen(SoftLParenToken t);
     void visitSoftRParen(SoftRParenToken t);
+    void visitNodeStart(NodeStartToken t);
+    void visitNodeEnd(NodeEndToken t);
 }
 
 class StringToken implements Token {  
@@ -54,6 +58,23 @@ class StringToken implements Token {
     int length() {
         return value.length();
     }
+
+    /**
+     * Returns the text this token was created with, before any markup.
+     */
+    String getText() {
+        return value;
+    }
+
+    /**
+     * Appends this token as r renders it.
+     *
+     * @return the styles open after this token
+     */
+    Renderer.OpenStyle render(Renderer r, Renderer.OpenStyle open, StringBuilder out) {
+        out.append(value);
+        return open;
+    }
 }
 
 class NewlineToken implements Token {
@@ -132,17 +153,64 @@ class SoftRParenToken implements Token {
     }
 }
 
+class NodeStartToken implements Token {
+    private final Node node;
+
+    public NodeStartToken(Node node) {
+        this.node = node;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    @Override
+    public void accept(TokenVisitor l) {
+        l.visitNodeStart(this);
+    }
+}
+
+class NodeEndToken implements Token {
+    @Override
+    public void accept(TokenVisitor l) {
+        l.visitNodeEnd(this);
+    }
+}
+
 class StyledToken extends StringToken {
-    private int length;
+    private final String style;
+    private String html;
 
     public StyledToken(String style, String value) {
-        super("<span class='" + style + "'>" + escape(value) + "</span>");
-        this.length = value.length();
+        super(value);
+        this.style = style;
+    }
+
+    @Override
+    public String getValue() {
+        if (html == null) {
+            html = "<span class='" + style + "'>" + escape(getText()) + "</span>";
+        }
+        return html;
     }
 
     @Override
     int length() {
-        return length;
+        return getText().length();
+    }
+
+    String getStyle() {
+        return style;
+    }
+
+    @Override
+    Renderer.OpenStyle render(Renderer r, Renderer.OpenStyle open, StringBuilder out) {
+        if (r == Renderer.HTML) {
+            out.append(getValue());
+        } else {
+            r.styled(style, getText(), open, out);
+        }
+        return open;
     }
     
     static String escape(String text) {
@@ -151,13 +219,28 @@ class StyledToken extends StringToken {
 }
 
 class EscapedToken extends StringToken {
-    private int length;
+    private String escaped;
     public EscapedToken(String value) {
-        super(StyledToken.escape(value));
-        length = value.length();
+        super(value);
+    }
+    @Override
+    public String getValue() {
+        if (escaped == null) {
+            escaped = StyledToken.escape(getText());
+        }
+        return escaped;
     }
     @Override
-    int length() { return length; }
+    int length() { return getText().length(); }
+    @Override
+    Renderer.OpenStyle render(Renderer r, Renderer.OpenStyle open, StringBuilder out) {
+        if (r == Renderer.HTML) {
+            out.append(getValue());
+        } else {
+            r.text(getText(), out);
+        }
+        return open;
+    }
 }
 
 class TagToken extends StringToken {
@@ -165,4 +248,40 @@ class TagToken extends StringToken {
         super(value);
     }
     int length() { return 0; }
-}
\ No newline at end of file
+    @Override
+    Renderer.OpenStyle render(Renderer r, Renderer.OpenStyle open, StringBuilder out) {
+        r.markup(getValue(), out);
+        return open;
+    }
+}
+
+class SpanToken extends TagToken {
+    private final String style;
+
+    public SpanToken(String style) {
+        super("<span class=" + style + ">");
+        this.style = style;
+    }
+
+    String getStyle() {
+        return style;
+    }
+
+    @Override
+    Renderer.OpenStyle render(Renderer r, Renderer.OpenStyle open, StringBuilder out) {
+        r.startStyle(style, open, out);
+        return new Renderer.OpenStyle(style, open);
+    }
+}
+
+class SpanEndToken extends TagToken {
+    public SpanEndToken() {
+        super("</span>");
+    }
+
+    @Override
+    Renderer.OpenStyle render(Renderer r, Renderer.OpenStyle open, StringBuilder out) {
+        r.endStyle(open, out);
+        return open == null ? null : open.previous;
+    }
+}
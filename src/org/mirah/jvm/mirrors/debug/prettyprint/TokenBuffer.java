@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import mirah.lang.ast.Node;
+
+/**
+ * A token list stored as an int per token.
+ *
+ * Structural tokens are just an opcode. Text is an opcode plus an index
+ * into a pool where each distinct (kind, style, text) is stored once, so
+ * adding an identifier or punctuation mark allocates nothing. Tokens are
+ * only created when the list is read, once per pool entry, and styles are
+ * applied when they are printed. Once most of the tokens are removed, the
+ * entries no token uses any more are dropped.
+ */
+final class TokenBuffer extends AbstractList<Token> implements RandomAccess {
+
+    private static final int NEWLINE = 0;
+    private static final int SOFT_NEWLINE = 1;
+    private static final int INDENT = 2;
+    private static final int DEDENT = 3;
+    private static final int LIST_START = 4;
+    private static final int LIST_SEPARATOR = 5;
+    private static final int LIST_END = 6;
+    private static final int SOFT_LPAREN = 7;
+    private static final int SOFT_RPAREN = 8;
+    private static final int STRING = 9;
+    private static final int TEXT = 10;
+    private static final int STYLED = 11;
+    private static final int TAG = 12;
+    private static final int OTHER = 13;
+    private static final int SPAN = 14;
+    private static final int SPAN_END = 15;
+    private static final int NODE_START = 16;
+    private static final int NODE_END = 17;
+    private static final int OP_BITS = 5;
+    private static final int OP_MASK = (1 << OP_BITS) - 1;
+    // Pools up to this size are never compacted, so common text is shared
+    // across lines when streaming.
+    private static final int MIN_POOL = 1024;
+
+    private static final Token[] STRUCTURE = {
+        new NewlineToken(),
+        new SoftNewlineToken(),
+        new IndentToken(),
+        new DedentToken(),
+        new ListStartToken(),
+        new ListSeparatorToken(),
+        new ListEndToken(),
+        new SoftLParenToken(),
+        new SoftRParenToken()
+    };
+    private static final Token END_SPAN = new SpanEndToken();
+    private static final Token END_NODE = new NodeEndToken();
+
+    private int[] ops = new int[256];
+    private int size = 0;
+
+    // The pool. Entry i is text[i] in style[i], and pooled[i] is the token
+    // for it once somebody has asked for one.
+    private String[] text = new String[64];
+    private String[] style = new String[64];
+    private Token[] pooled = new Token[64];
+    private int poolSize = 0;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<String, Integer> texts = new HashMap<>();
+    private final Map<String, Integer> tags = new HashMap<>();
+    private final Map<String, Integer> spans = new HashMap<>();
+    private final Map<String, Map<String, Integer>> styled = new HashMap<>();
+
+    /**
+     * Adds text that is escaped when it is printed, like an
+     * {@link EscapedToken}.
+     */
+    void addText(String value) {
+        push(TEXT, intern(texts, null, value));
+    }
+
+    /**
+     * Adds text in a style, like a {@link StyledToken}.
+     */
+    void addStyled(String styleName, String value) {
+        Map<String, Integer> values = styled.get(styleName);
+        if (values == null) {
+            values = new HashMap<>();
+            styled.put(styleName, values);
+        }
+        push(STYLED, intern(values, styleName, value));
+    }
+
+    @Override
+    public boolean add(Token t) {
+        if (t instanceof StringToken) {
+            addString((StringToken) t);
+        } else if (t instanceof NewlineToken) {
+            push(NEWLINE, 0);
+        } else if (t instanceof SoftNewlineToken) {
+            push(SOFT_NEWLINE, 0);
+        } else if (t instanceof IndentToken) {
+            push(INDENT, 0);
+        } else if (t instanceof DedentToken) {
+            push(DEDENT, 0);
+        } else if (t instanceof ListStartToken) {
+            push(LIST_START, 0);
+        } else if (t instanceof ListSeparatorToken) {
+            push(LIST_SEPARATOR, 0);
+        } else if (t instanceof ListEndToken) {
+            push(LIST_END, 0);
+        } else if (t instanceof SoftLParenToken) {
+            push(SOFT_LPAREN, 0);
+        } else if (t instanceof SoftRParenToken) {
+            push(SOFT_RPAREN, 0);
+        } else if (t instanceof NodeStartToken) {
+            int index = newEntry(null, null);
+            pooled[index] = t;
+            push(NODE_START, index);
+        } else if (t instanceof NodeEndToken) {
+            push(NODE_END, 0);
+        } else {
+            int index = newEntry(null, null);
+            pooled[index] = t;
+            push(OTHER, index);
+        }
+        return true;
+    }
+
+    private void addString(StringToken t) {
+        if (t instanceof StyledToken) {
+            addStyled(((StyledToken) t).getStyle(), t.getText());
+        } else if (t instanceof EscapedToken) {
+            addText(t.getText());
+        } else if (t instanceof SpanToken) {
+            String styleName = ((SpanToken) t).getStyle();
+            push(SPAN, intern(spans, styleName, styleName));
+        } else if (t instanceof SpanEndToken) {
+            push(SPAN_END, 0);
+        } else if (t instanceof TagToken) {
+            push(TAG, intern(tags, null, t.getText()));
+        } else if (t.getClass() == StringToken.class) {
+            push(STRING, intern(strings, null, t.getText()));
+        } else {
+            int index = newEntry(null, null);
+            pooled[index] = t;
+            push(OTHER, index);
+        }
+    }
+
+    /**
+     * Replaces the tokens from index from up to index to with replacement.
+     */
+    void replace(int from, int to, List<Token> replacement) {
+        int[] tail = Arrays.copyOfRange(ops, to, size);
+        size = from;
+        for (Token t : replacement) {
+            add(t);
+        }
+        if (size + tail.length > ops.length) {
+            ops = Arrays.copyOf(ops, Math.max(ops.length * 2, size + tail.length));
+        }
+        System.arraycopy(tail, 0, ops, size, tail.length);
+        size += tail.length;
+        ++modCount;
+    }
+
+    /**
+     * Returns the index of the {@link NodeStartToken} for node, or -1.
+     */
+    int indexOfNode(Node node) {
+        for (int i = 0; i < size; ++i) {
+            if ((ops[i] & OP_MASK) == NODE_START
+                    && ((NodeStartToken) pooled[ops[i] >>> OP_BITS]).getNode() == node) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the {@link NodeEndToken} that closes the node
+     * started at index start.
+     */
+    int endOfNode(int start) {
+        int depth = 0;
+        for (int i = start; i < size; ++i) {
+            int op = ops[i] & OP_MASK;
+            if (op == NODE_START) {
+                ++depth;
+            } else if (op == NODE_END && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Token get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        int op = ops[index] & OP_MASK;
+        if (op < STRUCTURE.length) {
+            return STRUCTURE[op];
+        }
+        if (op == SPAN_END) {
+            return END_SPAN;
+        } else if (op == NODE_END) {
+            return END_NODE;
+        }
+        int entry = ops[index] >>> OP_BITS;
+        Token t = pooled[entry];
+        if (t == null) {
+            t = createToken(op, entry);
+            pooled[entry] = t;
+        }
+        return t;
+    }
+
+    private Token createToken(int op, int entry) {
+        switch (op) {
+            case STRING:
+                return new StringToken(text[entry]);
+            case TEXT:
+                return new EscapedToken(text[entry]);
+            case STYLED:
+                return new StyledToken(style[entry], text[entry]);
+            case TAG:
+                return new TagToken(text[entry]);
+            case SPAN:
+                return new SpanToken(style[entry]);
+            default:
+                throw new IllegalStateException("Bad opcode " + op);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        Arrays.fill(text, 0, poolSize, null);
+        Arrays.fill(style, 0, poolSize, null);
+        Arrays.fill(pooled, 0, poolSize, null);
+        poolSize = 0;
+        strings.clear();
+        texts.clear();
+        tags.clear();
+        spans.clear();
+        styled.clear();
+        ++modCount;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        System.arraycopy(ops, toIndex, ops, fromIndex, size - toIndex);
+        size -= toIndex - fromIndex;
+        ++modCount;
+        // A streaming printer removes each line once it is written, so
+        // without this the pool would grow with the whole input.
+        if (poolSize > Math.max(MIN_POOL, 2 * size)) {
+            compact();
+        }
+    }
+
+    /**
+     * Returns the number of pool entries.
+     */
+    int poolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Drops the pool entries that no token uses any more, keeping the order
+     * of the rest.
+     */
+    private void compact() {
+        int[] moved = new int[poolSize];
+        Arrays.fill(moved, -1);
+        int kept = 0;
+        for (int i = 0; i < size; ++i) {
+            int op = ops[i] & OP_MASK;
+            if (!hasEntry(op)) {
+                continue;
+            }
+            int entry = ops[i] >>> OP_BITS;
+            if (moved[entry] == -1) {
+                moved[entry] = -2;
+            }
+        }
+        for (int entry = 0; entry < poolSize; ++entry) {
+            if (moved[entry] == -2) {
+                text[kept] = text[entry];
+                style[kept] = style[entry];
+                pooled[kept] = pooled[entry];
+                moved[entry] = kept++;
+            }
+        }
+        Arrays.fill(text, kept, poolSize, null);
+        Arrays.fill(style, kept, poolSize, null);
+        Arrays.fill(pooled, kept, poolSize, null);
+        poolSize = kept;
+        for (int i = 0; i < size; ++i) {
+            int op = ops[i] & OP_MASK;
+            if (hasEntry(op)) {
+                ops[i] = op | (moved[ops[i] >>> OP_BITS] << OP_BITS);
+            }
+        }
+        renumber(strings, moved);
+        renumber(texts, moved);
+        renumber(tags, moved);
+        renumber(spans, moved);
+        for (Map<String, Integer> values : styled.values()) {
+            renumber(values, moved);
+        }
+    }
+
+    private static void renumber(Map<String, Integer> entries, int[] moved) {
+        Iterator<Map.Entry<String, Integer>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> e = it.next();
+            int entry = moved[e.getValue()];
+            if (entry < 0) {
+                it.remove();
+            } else {
+                e.setValue(entry);
+            }
+        }
+    }
+
+    private static boolean hasEntry(int op) {
+        return op >= STRING && op != SPAN_END && op != NODE_END;
+    }
+
+    private void push(int op, int entry) {
+        if (size == ops.length) {
+            ops = Arrays.copyOf(ops, size * 2);
+        }
+        ops[size++] = op | (entry << OP_BITS);
+        ++modCount;
+    }
+
+    private int intern(Map<String, Integer> entries, String styleName, String value) {
+        Integer index = entries.get(value);
+        if (index == null) {
+            index = newEntry(styleName, value);
+            entries.put(value, index);
+        }
+        return index;
+    }
+
+    private int newEntry(String styleName, String value) {
+        if (poolSize == text.length) {
+            text = Arrays.copyOf(text, poolSize * 2);
+            style = Arrays.copyOf(style, poolSize * 2);
+            pooled = Arrays.copyOf(pooled, poolSize * 2);
+        }
+        text[poolSize] = value;
+        style[poolSize] = styleName;
+        return poolSize++;
+    }
+}
@@ -16,12 +16,25 @@
  
 package org.mirah.jvm.mirrors.debug.prettyprint;
 
+import java.io.Flushable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class TokenPrinter implements TokenVisitor {
 
+    /**
+     * How lines are wrapped. BACKTRACKING rewinds and reprints the current
+     * line when it overflows; LINEAR makes the same choices in one pass
+     * with {@link LinearTokenPrinter}. MULTI_WIDTH works out layouts for
+     * every width up front with {@link MultiWidthLayout}, so changing the
+     * limit afterwards doesn't lay the code out again.
+     */
+    public enum Layout {
+        BACKTRACKING, LINEAR, MULTI_WIDTH
+    }
+
     private static final String NL = String.format("%n");
     private StringBuilder buf = new StringBuilder();
     private int lineLength = 0;
@@ -33,25 +46,323 @@ public class TokenPrinter implements TokenVisitor {
     private SavedIndent savedIndent = new SavedIndent();
     private SavedPosition repairPoint = null;
     private ListState list = new NoList();
+    private Layout layout = Layout.BACKTRACKING;
+    private LinearTokenPrinter linear = null;
+    private MultiWidthLayout multiWidth = null;
+    private Renderer renderer = Renderer.HTML;
+    private Renderer.OpenStyle styles = null;
+    private final SourceMap sourceMap = new SourceMap();
+    private SourceMap.OpenNode openNodes = null;
+    private int lineStart = 0;
+    private List<Checkpoint> lineStarts = null;
+    private boolean atLineStart = true;
+    private int end = Integer.MAX_VALUE;
+    private int widest = 0;
+    private int lines = 0;
     private final List<Token> tokens;
+    private final Appendable writer;
+    private IOException error = null;
 
     public TokenPrinter(List<Token> tokens) {
+        this(tokens, null);
+    }
+
+    /**
+     * Creates a printer that streams to writer. Each line is written as soon
+     * as no repair point can reach it, and the tokens before it are removed
+     * from tokens, so tokens may be added while printing is in progress.
+     * Call {@link #finish()} to write the last line.
+     */
+    public TokenPrinter(List<Token> tokens, Appendable writer) {
         this.tokens = tokens;
+        this.writer = writer;
     }
-    
+
+    /**
+     * Returns the printed text. When streaming this is only the text that
+     * has not been written yet.
+     */
     public String toString() {
-        if (tokenIndex != tokens.size()) {
-            printTokens();
+        if (layout == Layout.MULTI_WIDTH) {
+            return multiWidth().getText(limit);
+        }
+        printTokens();
+        if (linear != null) {
+            return linear.toString();
         }
         return buf.toString();
     }
 
-    private void printTokens() {
+    /**
+     * Returns the map from the printed text back to the nodes that were
+     * marked in the tokens.
+     */
+    public SourceMap getSourceMap() {
+        if (layout == Layout.MULTI_WIDTH) {
+            return multiWidth().getSourceMap(limit);
+        }
+        printTokens();
+        if (linear != null) {
+            return linear.getSourceMap();
+        }
+        return sourceMap;
+    }
+
+    /**
+     * Prints the rest of the tokens and writes any text still buffered.
+     */
+    public void finish() throws IOException {
+        if (layout == Layout.MULTI_WIDTH) {
+            throw new IllegalStateException("Can't stream a multi-width layout");
+        }
+        printTokens();
+        if (linear != null) {
+            linear.finish();
+            return;
+        }
+        write();
+        if (writer instanceof Flushable) {
+            ((Flushable) writer).flush();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Prints the tokens added since the last call.
+     */
+    void printTokens() {
+        if (layout == Layout.LINEAR) {
+            if (linear == null) {
+                linear = new LinearTokenPrinter(tokens, writer);
+                linear.setLimit(limit);
+                linear.setIndentSpace(indentSpace);
+                linear.setRenderer(renderer);
+            }
+            linear.printTokens();
+            return;
+        }
+        if (layout == Layout.MULTI_WIDTH) {
+            return;
+        }
+        while (tokenIndex < tokens.size() && tokenIndex < end) {
+            if (atLineStart && lineStarts != null) {
+                lineStarts.add(new Checkpoint());
+            }
+            atLineStart = false;
+            tokens.get(tokenIndex).accept(this);
+            ++tokenIndex;
+        }
+    }
+
+    /**
+     * Remembers the state at the start of each line, so that
+     * {@link #relayout} can restart there. Must be called before printing.
+     */
+    void keepLineStarts() {
+        lineStarts = new ArrayList<>();
+    }
+
+    /**
+     * Lays out the text again after the tokens from index from up to index
+     * to were replaced by count new ones.
+     *
+     * Lines before the one containing from are final, so printing restarts
+     * there. It stops at the first line after the new tokens that starts in
+     * the same state as it did before, and the old text is reused from
+     * there on. Does nothing if no text was printed yet.
+     */
+    void relayout(int from, int to, int count) {
+        if (lineStarts == null || layout != Layout.BACKTRACKING || writer != null) {
+            throw new IllegalStateException();
+        }
+        if (lineStarts.isEmpty()) {
+            // Nothing was printed yet; the new tokens are printed with the
+            // rest when the text is asked for.
+            return;
+        }
+        int shift = count - (to - from);
+        int first = lineStartBefore(from);
+        Checkpoint start = lineStarts.get(first);
+        List<Checkpoint> old = new ArrayList<>(lineStarts.subList(first + 1, lineStarts.size()));
+        String oldText = buf.substring(start.bufferPos);
+        SourceMap oldMap = sourceMap.copy();
+        Checkpoint end = new Checkpoint();
+
+        lineStarts.subList(first, lineStarts.size()).clear();
+        start.restore();
+        int next = 0;
         while (tokenIndex < tokens.size()) {
+            if (atLineStart) {
+                Checkpoint current = new Checkpoint();
+                lineStarts.add(current);
+                atLineStart = false;
+                while (next < old.size() && old.get(next).token + shift < tokenIndex) {
+                    ++next;
+                }
+                if (tokenIndex >= from + count && next < old.size()
+                        && old.get(next).token + shift == tokenIndex
+                        && current.sameState(old.get(next))) {
+                    resync(current, old.get(next), old.subList(next + 1, old.size()),
+                           oldText.substring(old.get(next).bufferPos - start.bufferPos),
+                           oldMap, end, shift);
+                    return;
+                }
+            }
             tokens.get(tokenIndex).accept(this);
             ++tokenIndex;
         }
     }
+
+    /**
+     * Reuses the old text from the line starting at match, which is now at
+     * current.
+     */
+    private void resync(Checkpoint current, Checkpoint match, List<Checkpoint> rest,
+                        String text, SourceMap oldMap, Checkpoint end, int shift) {
+        int bufferShift = current.bufferPos - match.bufferPos;
+        int visibleShift = current.visiblePos - match.visiblePos;
+        int mapShift = current.mapSize - match.mapSize;
+        buf.append(text);
+        sourceMap.append(oldMap, match.mapSize, visibleShift);
+        for (Checkpoint c : rest) {
+            lineStarts.add(new Checkpoint(c, shift, bufferShift, visibleShift, mapShift));
+        }
+        new Checkpoint(end, shift, bufferShift, visibleShift, mapShift).restore();
+        atLineStart = end.atLineStart;
+    }
+
+    private MultiWidthLayout multiWidth() {
+        if (multiWidth == null || multiWidth.getTokenCount() != tokens.size()) {
+            multiWidth = new MultiWidthLayout(this);
+        }
+        return multiWidth;
+    }
+
+    /**
+     * Returns a new printer for the same tokens with the same settings but
+     * another limit.
+     */
+    TokenPrinter copy(int limit) {
+        TokenPrinter p = new TokenPrinter(tokens);
+        p.limit = limit;
+        p.indentSpace = indentSpace;
+        p.renderer = renderer;
+        return p;
+    }
+
+    /**
+     * Prints the lines from the line start from up to token end on a copy
+     * with another limit. from must not be inside a list.
+     */
+    TokenPrinter printLines(Checkpoint from, int end, int limit) {
+        TokenPrinter p = copy(limit);
+        List<SavedIndent> indents = new ArrayList<>();
+        for (SavedIndent s = from.indentState; s.previous != null; s = s.previous) {
+            indents.add(s);
+        }
+        for (int i = indents.size() - 1; i >= 0; --i) {
+            p.currentIndent = indents.get(i).indent;
+            p.continuationSpace = indents.get(i).continuation;
+            p.savedIndent = p.new SavedIndent();
+        }
+        p.currentIndent = from.indent;
+        p.continuationSpace = from.continuation;
+        p.styles = from.openStyles;
+        p.openNodes = from.nodes;
+        p.tokenIndex = from.token;
+        p.printUntil(end);
+        return p;
+    }
+
+    /**
+     * Prints on up to token end.
+     */
+    void printUntil(int end) {
+        this.end = end;
+        printTokens();
+    }
+
+    /**
+     * Returns true if the tokens printed so far end with a line break
+     * outside of any list and any continuation indent, so the next line
+     * starts the same way whatever the limit.
+     */
+    boolean endsClean() {
+        return atLineStart && isClean(list, continuationSpace, savedIndent);
+    }
+
+    private static boolean isClean(ListState list, int continuation, SavedIndent indents) {
+        if (!(list instanceof NoList) || continuation != 0) {
+            return false;
+        }
+        for (SavedIndent s = indents; s != null; s = s.previous) {
+            if (s.continuation != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getTokenCount() {
+        return tokens.size();
+    }
+
+    List<Checkpoint> getLineStarts() {
+        return lineStarts;
+    }
+
+    /**
+     * Returns the length of the longest line printed.
+     */
+    int getWidth() {
+        return Math.max(widest, lineLength);
+    }
+
+    /**
+     * Returns the number of lines printed, counting a last line without a
+     * line break.
+     */
+    int getLineCount() {
+        return lineLength > 0 ? lines + 1 : lines;
+    }
+
+    /**
+     * Returns the length of the text printed, counting only visible
+     * characters like the {@link SourceMap} does.
+     */
+    int getVisibleLength() {
+        return lineStart + lineLength;
+    }
+
+    private int lineStartBefore(int index) {
+        int low = 0;
+        int high = lineStarts.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lineStarts.get(mid).token <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void write() {
+        if (writer == null) {
+            return;
+        }
+        if (error == null) {
+            try {
+                writer.append(buf);
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+        buf.setLength(0);
+    }
     
     public int getLimit() {
         return limit;
@@ -59,6 +370,9 @@ public class TokenPrinter implements TokenVisitor {
 
     public void setLimit(int limit) {
         this.limit = limit;
+        if (linear != null) {
+            linear.setLimit(limit);
+        }
     }
 
     public int getIndentSpace() {
@@ -67,6 +381,30 @@ public class TokenPrinter implements TokenVisitor {
 
     public void setIndentSpace(int indentSpace) {
         this.indentSpace = indentSpace;
+        multiWidth = null;
+        if (linear != null) {
+            linear.setIndentSpace(indentSpace);
+        }
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    public void setLayout(Layout layout) {
+        this.layout = layout;
+    }
+
+    public Renderer getRenderer() {
+        return renderer;
+    }
+
+    public void setRenderer(Renderer renderer) {
+        this.renderer = renderer;
+        multiWidth = null;
+        if (linear != null) {
+            linear.setRenderer(renderer);
+        }
     }
 
     public void visitString(StringToken t) {
@@ -74,17 +412,17 @@ public class TokenPrinter implements TokenVisitor {
         if (lineLength + t.length() > limit && tryRepair()) {
             return;
         }
-        buf.append(t.getValue());
+        styles = t.render(renderer, styles, buf);
         lineLength += t.length();
     }
 
     private void maybeIndent() {
         if (lineLength == 0) {
             int indent = getIndent();
-            if (indent > 0) {
-                buf.append(String.format("%" + indent + "s", ""));
-                lineLength += indent;
+            for (int i = 0; i < indent; ++i) {
+                buf.append(' ');
             }
+            lineLength += indent;
         }
     }
 
@@ -104,8 +442,20 @@ public class TokenPrinter implements TokenVisitor {
 
     private void startLine() {
         buf.append(NL);
+        widest = Math.max(widest, lineLength);
+        ++lines;
+        lineStart += lineLength + 1;
         lineLength = 0;
         repairPoint = null;
+        atLineStart = true;
+        if (writer != null) {
+            // Nothing can rewind past the start of this line any more.
+            write();
+            if (tokenIndex >= tokens.size() - tokenIndex) {
+                tokens.subList(0, tokenIndex).clear();
+                tokenIndex = 0;
+            }
+        }
     }
 
     @Override
@@ -165,6 +515,20 @@ public class TokenPrinter implements TokenVisitor {
     public void visitSoftRParen(SoftRParenToken t) {
         list.endList();
     }
+
+    @Override
+    public void visitNodeStart(NodeStartToken t) {
+        int offset = lineStart + (lineLength == 0 ? getIndent() : lineLength);
+        sourceMap.start(offset, t.getNode());
+        openNodes = new SourceMap.OpenNode(t.getNode(), openNodes);
+    }
+
+    @Override
+    public void visitNodeEnd(NodeEndToken t) {
+        SourceMap.OpenNode parent = openNodes.previous;
+        sourceMap.end(lineStart + lineLength, parent == null ? null : parent.node);
+        openNodes = parent;
+    }
     
 
     private int getIndent() {
@@ -220,6 +584,146 @@ public class TokenPrinter implements TokenVisitor {
         }
     }
     
+    /**
+     * The printer state before printing token, which is the first token on
+     * a line except for the state saved at the end of the tokens.
+     */
+    class Checkpoint {
+        private final int token;
+        private final int bufferPos;
+        private final int visiblePos;
+        private final int mapSize;
+        private final int length;
+        private final boolean atLineStart;
+        private final int indent;
+        private final int continuation;
+        private final SavedIndent indentState;
+        private final ListState listState;
+        private final Renderer.OpenStyle openStyles;
+        private final SourceMap.OpenNode nodes;
+
+        Checkpoint() {
+            token = tokenIndex;
+            bufferPos = buf.length();
+            visiblePos = lineStart;
+            mapSize = sourceMap.size();
+            length = lineLength;
+            atLineStart = TokenPrinter.this.atLineStart;
+            indent = currentIndent;
+            continuation = continuationSpace;
+            indentState = savedIndent;
+            listState = list;
+            openStyles = styles;
+            nodes = openNodes;
+        }
+
+        Checkpoint(Checkpoint c, int tokenShift, int bufferShift, int visibleShift, int mapShift) {
+            token = c.token + tokenShift;
+            bufferPos = c.bufferPos + bufferShift;
+            visiblePos = c.visiblePos + visibleShift;
+            mapSize = c.mapSize + mapShift;
+            length = c.length;
+            atLineStart = c.atLineStart;
+            indent = c.indent;
+            continuation = c.continuation;
+            indentState = c.indentState;
+            listState = c.listState;
+            openStyles = c.openStyles;
+            nodes = c.nodes;
+        }
+
+        void restore() {
+            tokenIndex = token;
+            buf.setLength(bufferPos);
+            lineStart = visiblePos;
+            sourceMap.truncate(mapSize);
+            lineLength = length;
+            TokenPrinter.this.atLineStart = atLineStart;
+            currentIndent = indent;
+            continuationSpace = continuation;
+            savedIndent = indentState;
+            list = listState;
+            styles = openStyles;
+            openNodes = nodes;
+            repairPoint = null;
+        }
+
+        int getToken() {
+            return token;
+        }
+
+        /**
+         * Returns true if the state here is the same whatever the limit:
+         * outside of any list and any continuation indent.
+         */
+        boolean isClean() {
+            return TokenPrinter.isClean(listState, continuation, indentState);
+        }
+
+        /**
+         * Returns true if printing from here gives the same text as printing
+         * from other.
+         */
+        boolean sameState(Checkpoint other) {
+            return indent == other.indent
+                    && continuation == other.continuation
+                    && sameIndents(indentState, other.indentState)
+                    && sameLists(listState, other.listState)
+                    && sameStyles(openStyles, other.openStyles)
+                    && sameNodes(nodes, other.nodes);
+        }
+    }
+
+    private static boolean sameIndents(SavedIndent a, SavedIndent b) {
+        while (a != b) {
+            if (a == null || b == null
+                    || a.indent != b.indent || a.continuation != b.continuation) {
+                return false;
+            }
+            a = a.previous;
+            b = b.previous;
+        }
+        return true;
+    }
+
+    private static boolean sameLists(ListState a, ListState b) {
+        while (a != b) {
+            if (a.getClass() != b.getClass()) {
+                return false;
+            } else if (a instanceof NoList) {
+                return true;
+            } else if (a instanceof SoftParenList
+                    && ((SoftParenList) a).visible != ((SoftParenList) b).visible) {
+                return false;
+            }
+            a = a.getPreviousList();
+            b = b.getPreviousList();
+        }
+        return true;
+    }
+
+    private static boolean sameStyles(Renderer.OpenStyle a, Renderer.OpenStyle b) {
+        while (a != b) {
+            if (a == null || b == null || !a.style.equals(b.style)) {
+                return false;
+            }
+            a = a.previous;
+            b = b.previous;
+        }
+        return true;
+    }
+
+    private static boolean sameNodes(SourceMap.OpenNode a, SourceMap.OpenNode b) {
+        while (a != b) {
+            if (a == null || b == null || a.node != b.node) {
+                return false;
+            }
+            a = a.previous;
+            b = b.previous;
+        }
+        return true;
+    }
+
     interface ListState {
 
         void endList();
@@ -239,6 +743,9 @@ public class TokenPrinter implements TokenVisitor {
         private final int indent = currentIndent;
         private final int savedContinuation = continuationSpace;
         protected final ListState savedList = list;
+        private final Renderer.OpenStyle savedStyles = styles;
+        private final int mapSize = sourceMap.size();
+        private final SourceMap.OpenNode savedNodes = openNodes;
 
         protected void restore() {
             tokenIndex = savedToken;
@@ -249,6 +756,9 @@ public class TokenPrinter implements TokenVisitor {
             continuationSpace = savedContinuation;
             list = savedList;
             savedIndent = indentState;
+            styles = savedStyles;
+            sourceMap.truncate(mapSize);
+            openNodes = savedNodes;
         }
         abstract boolean repair();
 
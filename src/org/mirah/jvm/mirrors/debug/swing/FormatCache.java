@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+package org.mirah.jvm.mirrors.debug.swing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Formatted output from earlier runs of {@link PrettyPrintMirah}, keyed by
+ * a hash of the source and the printer settings.
+ *
+ * The cache is one file: a header followed by records, each a key and the
+ * output. The file is memory-mapped and scanned once when it is opened to
+ * build the index, so a hit is a hash lookup and a copy. New records are
+ * appended as files are formatted. Bump VERSION when the formatter changes
+ * its output, and old caches are thrown away.
+ *
+ * Several runs may share the file. Each holds a lock on it while it checks
+ * the header or appends a record, and appends at the end of the file rather
+ * than where it thinks the end is, so no run overwrites another's records.
+ */
+class FormatCache implements Closeable {
+
+    private static final int MAGIC = 0x4d464d54;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int HASH_SIZE = 20;
+    // Hash, limit, indent, renderer and output length.
+    private static final int KEY_SIZE = HASH_SIZE + 4 + 4 + 4 + 4;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    // Offset of each record's output length in mapped, or -1 for records
+    // added since the file was opened.
+    private final ConcurrentMap<Key, Integer> index = new ConcurrentHashMap<>();
+
+    FormatCache(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try (FileLock lock = channel.lock()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() < HEADER_SIZE || channel.read(header, 0) < HEADER_SIZE
+                    || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                channel.truncate(0);
+                header.clear();
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                channel.write(header, 0);
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long end = scan();
+            // Drops a record cut short by a run that died while writing it,
+            // so the records appended after it can be read.
+            if (end < channel.size()) {
+                channel.truncate(end);
+            }
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Indexes the records and returns the offset just past the last
+     * complete one.
+     */
+    private long scan() {
+        int pos = HEADER_SIZE;
+        while (pos + KEY_SIZE <= mapped.limit()) {
+            byte[] hash = new byte[HASH_SIZE];
+            mapped.position(pos);
+            mapped.get(hash);
+            Key key = new Key(hash, mapped.getInt(), mapped.getInt(), mapped.getInt());
+            int length = mapped.getInt();
+            int next = pos + KEY_SIZE + length;
+            if (length < 0 || next > mapped.limit()) {
+                break;
+            }
+            index.put(key, pos + KEY_SIZE - 4);
+            pos = next;
+        }
+        return pos;
+    }
+
+    static Key key(byte[] source, int limit, int indentSpace, int renderer) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(source);
+            return new Key(hash, limit, indentSpace, renderer);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns the output stored for key, or null.
+     */
+    byte[] get(Key key) {
+        Integer offset = index.get(key);
+        if (offset == null || offset == -1) {
+            return null;
+        }
+        ByteBuffer record = mapped.duplicate();
+        record.position(offset);
+        byte[] output = new byte[record.getInt()];
+        record.get(output);
+        return output;
+    }
+
+    void put(Key key, byte[] output) throws IOException {
+        if (index.putIfAbsent(key, -1) != null) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(KEY_SIZE + output.length);
+        record.put(key.hash).putInt(key.limit).putInt(key.indentSpace).putInt(key.renderer);
+        record.putInt(output.length).put(output).flip();
+        synchronized (this) {
+            try (FileLock lock = channel.lock()) {
+                long pos = channel.size();
+                while (record.hasRemaining()) {
+                    pos += channel.write(record, pos);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static final class Key {
+        final byte[] hash;
+        final int limit;
+        final int indentSpace;
+        final int renderer;
+
+        Key(byte[] hash, int limit, int indentSpace, int renderer) {
+            this.hash = hash;
+            this.limit = limit;
+            this.indentSpace = indentSpace;
+            this.renderer = renderer;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((Arrays.hashCode(hash) * 31 + limit) * 31 + indentSpace) * 31 + renderer;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Arrays.equals(hash, other.hash) && limit == other.limit
+                    && indentSpace == other.indentSpace && renderer == other.renderer;
+        }
+    }
+}
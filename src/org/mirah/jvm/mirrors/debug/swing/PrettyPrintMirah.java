@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+package org.mirah.jvm.mirrors.debug.swing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import mirah.impl.MirahParser;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.StringCodeSource;
+import org.mirah.jvm.mirrors.debug.prettyprint.MirahSourceGenerator;
+import org.mirah.jvm.mirrors.debug.prettyprint.Renderer;
+import org.mirah.mmeta.SyntaxError;
+
+/**
+ * Formats a tree of Mirah sources without the debugger, on a fork-join
+ * pool, and reports how fast it went.
+ *
+ * Usage: PrettyPrintMirah [-o outdir | -i] [-w width] [-s indent]
+ * [-r plain|ansi|html] [-c cachefile] [-j threads] [-n slowest] dir...
+ *
+ * With -o the output mirrors the input tree under outdir, with -i the
+ * sources are rewritten in place, and otherwise the output is only
+ * measured. With -c, files formatted the same way in an earlier run are
+ * copied from the {@link FormatCache} instead of being parsed again.
+ */
+public class PrettyPrintMirah {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<Path> roots = new ArrayList<>();
+    private Path outputDir;
+    private boolean inPlace;
+    private int width = 80;
+    private int indentSpace = 2;
+    private Path cacheFile;
+    private FormatCache cache;
+    private Renderer renderer = Renderer.PLAIN;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int slowest = 10;
+    private final ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<>();
+
+    public static void main(String[] args) throws IOException {
+        PrettyPrintMirah tool = new PrettyPrintMirah();
+        if (!tool.processArgs(args)) {
+            System.err.println("Usage: PrettyPrintMirah [-o outdir | -i] [-w width] [-s indent]"
+                    + " [-r plain|ansi|html] [-c cachefile] [-j threads] [-n slowest] dir...");
+            System.exit(2);
+        }
+        System.exit(tool.run());
+    }
+
+    /**
+     * Reads the options and roots from args. Returns false if they aren't
+     * valid, so the usage should be shown.
+     */
+    boolean processArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i];
+                if (arg.equals("-i")) {
+                    inPlace = true;
+                } else if (!arg.startsWith("-")) {
+                    roots.add(Paths.get(arg));
+                } else if (i + 1 == args.length) {
+                    return false;
+                } else if (arg.equals("-o")) {
+                    outputDir = Paths.get(args[++i]);
+                } else if (arg.equals("-w")) {
+                    width = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-s")) {
+                    indentSpace = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-c")) {
+                    cacheFile = Paths.get(args[++i]);
+                } else if (arg.equals("-r")) {
+                    renderer = Renderer.valueOf(args[++i].toUpperCase());
+                } else if (arg.equals("-j")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-n")) {
+                    slowest = Integer.parseInt(args[++i]);
+                } else {
+                    return false;
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            // A number that isn't one, an unknown renderer or a bad path.
+            return false;
+        }
+        return !roots.isEmpty() && !(inPlace && outputDir != null)
+                && width > 0 && indentSpace >= 0 && threads > 0 && slowest >= 0;
+    }
+
+    /**
+     * Formats every .mirah file under the roots and prints a report.
+     * Returns the exit status: 0 if every file was formatted, 1 otherwise.
+     */
+    int run() throws IOException {
+        List<Path[]> files = new ArrayList<>();
+        for (Path root : roots) {
+            collect(root, files);
+        }
+        long start = System.nanoTime();
+        if (cacheFile != null) {
+            cache = new FormatCache(cacheFile);
+        }
+        try {
+            new ForkJoinPool(threads).invoke(new FormatFiles(files, 0, files.size()));
+        } finally {
+            if (cache != null) {
+                cache.close();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        return report(elapsed);
+    }
+
+    /**
+     * Adds the source and output path of each .mirah file under root.
+     */
+    private void collect(final Path root, final List<Path[]> files) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (file.getFileName().toString().endsWith(".mirah")) {
+                    Path output = null;
+                    if (inPlace) {
+                        output = file;
+                    } else if (outputDir != null) {
+                        output = outputDir.resolve(root.relativize(file).toString());
+                    }
+                    files.add(new Path[] {file, output});
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void format(Path source, Path output) {
+        long start = System.nanoTime();
+        long parsed = start;
+        long size = 0;
+        boolean cached = false;
+        String error = null;
+        try {
+            byte[] bytes = Files.readAllBytes(source);
+            size = bytes.length;
+            FormatCache.Key key = null;
+            byte[] formatted = null;
+            if (cache != null) {
+                key = FormatCache.key(bytes, width, indentSpace, renderer.ordinal());
+                formatted = cache.get(key);
+                cached = formatted != null;
+            }
+            if (formatted == null) {
+                String code = new String(bytes, UTF8);
+                Node script = (Node) new MirahParser().parse(
+                        new StringCodeSource(source.toString(), code));
+                parsed = System.nanoTime();
+                if (cache != null) {
+                    StringBuilder out = new StringBuilder();
+                    print(script, out);
+                    formatted = out.toString().getBytes(UTF8);
+                    cache.put(key, formatted);
+                } else if (output == null) {
+                    print(script, new StringBuilder());
+                } else {
+                    createParent(output);
+                    try (Writer writer = new BufferedWriter(Files.newBufferedWriter(output, UTF8))) {
+                        print(script, writer);
+                    }
+                }
+            }
+            if (formatted != null && output != null) {
+                createParent(output);
+                Files.write(output, formatted);
+            }
+        } catch (IOException | RuntimeException | SyntaxError ex) {
+            error = ex.toString();
+        }
+        long end = System.nanoTime();
+        results.add(new Result(source, size, parsed - start, end - parsed, cached, error));
+    }
+
+    private static void createParent(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+    }
+
+    private void print(Node script, Appendable out) throws IOException {
+        MirahSourceGenerator generator = new MirahSourceGenerator(out);
+        generator.setLimit(width);
+        generator.setIndentSpace(indentSpace);
+        generator.setRenderer(renderer);
+        script.accept(generator, null);
+        generator.finish();
+    }
+
+    private int report(long elapsed) {
+        List<Result> sorted = new ArrayList<>(results);
+        Collections.sort(sorted, new Comparator<Result>() {
+            @Override
+            public int compare(Result a, Result b) {
+                return Long.compare(b.parseNanos + b.formatNanos, a.parseNanos + a.formatNanos);
+            }
+        });
+        long bytes = 0;
+        long parsing = 0;
+        long formatting = 0;
+        int hits = 0;
+        int failed = 0;
+        for (Result r : sorted) {
+            if (r.cached) {
+                ++hits;
+            }
+            bytes += r.bytes;
+            parsing += r.parseNanos;
+            formatting += r.formatNanos;
+            if (r.error != null) {
+                System.err.println(r.file + ": " + r.error);
+                ++failed;
+            }
+        }
+        double seconds = elapsed / 1e9;
+        System.err.printf("%d files, %d bytes in %.3f s on %d threads%n",
+                          sorted.size(), bytes, seconds, threads);
+        System.err.printf("%.1f files/s, %.1f KB/s%n",
+                          sorted.size() / seconds, bytes / 1024.0 / seconds);
+        // Summed over the threads, so they add up to more than the elapsed time.
+        System.err.printf("parsing %.3f s, formatting %.3f s%n",
+                          parsing / 1e9, formatting / 1e9);
+        if (cache != null) {
+            System.err.printf("%d of %d files were cached%n", hits, sorted.size());
+        }
+        if (failed > 0) {
+            System.err.printf("%d files failed%n", failed);
+        }
+        for (int i = 0; i < Math.min(slowest, sorted.size()); ++i) {
+            Result r = sorted.get(i);
+            System.err.printf("%10.3f ms parse %10.3f ms format %8d bytes  %s%n",
+                              r.parseNanos / 1e6, r.formatNanos / 1e6, r.bytes, r.file);
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * Formats files from index from up to index to, splitting the range
+     * in half until there is one file left.
+     */
+    private class FormatFiles extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<Path[]> files;
+        private final int from;
+        private final int to;
+
+        FormatFiles(List<Path[]> files, int from, int to) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                format(files.get(from)[0], files.get(from)[1]);
+            } else if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FormatFiles(files, from, mid), new FormatFiles(files, mid, to));
+            }
+        }
+    }
+
+    private static class Result {
+        final Path file;
+        final long bytes;
+        final long parseNanos;
+        final long formatNanos;
+        final boolean cached;
+        final String error;
+
+        Result(Path file, long bytes, long parseNanos, long formatNanos, boolean cached,
+               String error) {
+            this.file = file;
+            this.bytes = bytes;
+            this.parseNanos = parseNanos;
+            this.formatNanos = formatNanos;
+            this.cached = cached;
+            this.error = error;
+        }
+    }
+}
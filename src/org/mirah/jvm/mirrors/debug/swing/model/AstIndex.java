@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import javax.swing.tree.TreePath;
+import mirah.lang.ast.Node;
+import org.mirah.jvm.mirrors.debug.prettyprint.NodeWalker;
+
+/**
+ * The shape of a tree as it was when the index was built, from one scan.
+ *
+ * Each node gets a number in the order it was reached. The children,
+ * parent, index in the parent and depth of a node are looked up by that
+ * number, so walking the tree allocates nothing. Paths are built on first
+ * use on top of the parent's path, which TreePath shares, so every path
+ * in the tree takes one TreePath per node.
+ *
+ * Nodes that the filter hides are left out with their subtrees, so the
+ * index is the tree as the outline shows it.
+ */
+final class AstIndex {
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Map<Node, Integer> ids = new IdentityHashMap<>();
+    private Node[] nodes = new Node[64];
+    private int[] parents = new int[64];
+    private int[] indexes = new int[64];
+    private int[] depths = new int[64];
+    private Node[][] children = new Node[64][];
+    private TreePath[] paths;
+    private int size = 0;
+
+    AstIndex(Node root) {
+        this(root, NodeFilter.ALL);
+    }
+
+    AstIndex(Node root, NodeFilter filter) {
+        scan(root, filter);
+        paths = new TreePath[size];
+    }
+
+    Node getRoot() {
+        return nodes[0];
+    }
+
+    boolean contains(Node node) {
+        return ids.containsKey(node);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the children of node, or null if it isn't in the index.
+     * The array must not be changed.
+     */
+    Node[] getChildren(Node node) {
+        Integer id = ids.get(node);
+        return id == null ? null : children[id];
+    }
+
+    Node getParent(Node node) {
+        Integer id = ids.get(node);
+        return id == null || parents[id] < 0 ? null : nodes[parents[id]];
+    }
+
+    /**
+     * Returns the position of child among the children of parent, or -1.
+     */
+    int getIndexOfChild(Node parent, Node child) {
+        Integer id = ids.get(child);
+        if (id == null || parents[id] < 0 || nodes[parents[id]] != parent) {
+            return -1;
+        }
+        return indexes[id];
+    }
+
+    /**
+     * Returns the number of ancestors of node, or -1 if it isn't in the
+     * index.
+     */
+    int getDepth(Node node) {
+        Integer id = ids.get(node);
+        return id == null ? -1 : depths[id];
+    }
+
+    /**
+     * Returns the path from the root to node, or null if it isn't in the
+     * index.
+     */
+    synchronized TreePath getPath(Node node) {
+        Integer id = ids.get(node);
+        return id == null ? null : path(id);
+    }
+
+    private TreePath path(int id) {
+        if (paths[id] == null) {
+            // Find the nearest ancestor with a path, then extend it down.
+            int top = id;
+            while (parents[top] >= 0 && paths[top] == null) {
+                top = parents[top];
+            }
+            if (paths[top] == null) {
+                paths[top] = new TreePath(nodes[top]);
+            }
+            int[] chain = new int[depths[id] - depths[top]];
+            int n = chain.length;
+            for (int i = id; i != top; i = parents[i]) {
+                chain[--n] = i;
+            }
+            TreePath path = paths[top];
+            for (int i : chain) {
+                path = path.pathByAddingChild(nodes[i]);
+                paths[i] = path;
+            }
+        }
+        return paths[id];
+    }
+
+    private void scan(Node root, final NodeFilter filter) {
+        new NodeWalker() {
+            // The numbers of the nodes being scanned, and their children so
+            // far.
+            private int[] open = new int[16];
+            private Node[][] found = new Node[16][];
+            private int[] counts = new int[16];
+            private int depth = 0;
+
+            @Override
+            protected boolean enter(Node node) {
+                if (depth > 0 && !filter.isVisible(node)) {
+                    return false;
+                }
+                int parent = depth == 0 ? -1 : open[depth - 1];
+                int id = add(node, parent, depth);
+                if (depth > 0) {
+                    addChild(depth - 1, node);
+                }
+                if (depth == open.length) {
+                    open = Arrays.copyOf(open, depth * 2);
+                    found = Arrays.copyOf(found, depth * 2);
+                    counts = Arrays.copyOf(counts, depth * 2);
+                }
+                open[depth] = id;
+                found[depth] = NO_CHILDREN;
+                counts[depth] = 0;
+                ++depth;
+                return true;
+            }
+
+            @Override
+            protected void exit(Node node) {
+                --depth;
+                if (counts[depth] == 0 && depth > 0 && !filter.isVisibleWhenEmpty(node)) {
+                    // The node has no children, so it is the last one added.
+                    --counts[depth - 1];
+                    ids.remove(node);
+                    nodes[--size] = null;
+                    found[depth] = null;
+                    return;
+                }
+                children[open[depth]] = counts[depth] == found[depth].length
+                        ? found[depth] : Arrays.copyOf(found[depth], counts[depth]);
+                found[depth] = null;
+            }
+
+            private void addChild(int level, Node child) {
+                int count = counts[level];
+                indexes[size - 1] = count;
+                if (count == found[level].length) {
+                    found[level] = Arrays.copyOf(found[level], Math.max(4, count * 2));
+                }
+                found[level][count] = child;
+                counts[level] = count + 1;
+            }
+        }.walk(root);
+    }
+
+    private int add(Node node, int parent, int depth) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            parents = Arrays.copyOf(parents, size * 2);
+            indexes = Arrays.copyOf(indexes, size * 2);
+            depths = Arrays.copyOf(depths, size * 2);
+            children = Arrays.copyOf(children, size * 2);
+        }
+        nodes[size] = node;
+        parents[size] = parent;
+        depths[size] = depth;
+        ids.put(node, size);
+        return size++;
+    }
+}
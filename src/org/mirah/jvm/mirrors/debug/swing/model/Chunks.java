@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+/**
+ * Splits a long list of rows into ranges of at most chunkSize rows, nested
+ * until no row has more than chunkSize children.
+ */
+final class Chunks {
+
+    private Chunks() {
+    }
+
+    /**
+     * Returns the smallest power of chunkSize that splits count rows into at
+     * most chunkSize ranges.
+     */
+    static int span(int count, int chunkSize) {
+        long span = chunkSize;
+        while ((count + span - 1) / span > chunkSize) {
+            span *= chunkSize;
+        }
+        return (int) span;
+    }
+
+    /**
+     * Returns the size of the pieces a row of count children is split into,
+     * which is 1 if they fit in the row.
+     */
+    static int childSpan(int count, int chunkSize) {
+        return count <= chunkSize ? 1 : span(count, chunkSize);
+    }
+
+    /**
+     * Returns how many pieces of span rows make up size rows.
+     */
+    static int count(int size, int span) {
+        return (size + span - 1) / span;
+    }
+}
@@ -16,15 +16,26 @@
  
 package org.mirah.jvm.mirrors.debug.swing.model;
 
+import java.awt.Point;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.DefaultListModel;
 import javax.swing.ListModel;
+import javax.swing.SwingUtilities;
 import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 import mirah.lang.ast.Break;
@@ -32,6 +43,7 @@ import mirah.lang.ast.Node;
 import org.mirah.jvm.mirrors.debug.Breakpoint;
 import org.mirah.jvm.mirrors.debug.DebugController;
 import org.mirah.jvm.mirrors.debug.StackEntry;
+import org.mirah.jvm.mirrors.debug.prettyprint.InferredTypes;
 import org.netbeans.swing.outline.DefaultOutlineModel;
 import org.netbeans.swing.outline.OutlineModel;
 
@@ -42,6 +54,24 @@ public class DebuggerModel {
     private NodeModel selectedNode;
 
     private OutlineModel ast;
+    // The selected script's tree, which ast shows.
+    private NodeTreeModel astTree;
+    // The outlines of the scripts shown last, so going back to one keeps
+    // its expanded rows and where it was scrolled to.
+    private static final int MAX_SCRIPTS = 8;
+    private final Map<NodeModel, ScriptView> scriptViews =
+            new LinkedHashMap<NodeModel, ScriptView>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<NodeModel, ScriptView> eldest) {
+                    return size() > MAX_SCRIPTS;
+                }
+            };
+    // Counts the stops, so a script's tree is refreshed when it is shown
+    // again after one.
+    private int stops = 0;
+    // Where the nodes of positionRoot are in its source, built on first use.
+    private PositionIndex positionIndex;
+    private Node positionRoot;
     private final VariableTreeModel vars = new VariableTreeModel();
     private final OutlineModel varsOutline =
             DefaultOutlineModel.createOutlineModel(vars, new VariableRowModel());
@@ -49,6 +79,37 @@ public class DebuggerModel {
     private DefaultListModel<Breakpoint> breakpoints = new DefaultListModel<>();
     private DebugController debugger;
 
+    public static final String PROP_GENERATED_CODE = "generatedCode";
+    public static final String PROP_CODE_WIDTH = "codeWidth";
+    public static final String PROP_SHOW_TYPES = "showTypes";
+    public static final String PROP_SHOW_IMPLICIT_NODES = "showImplicitNodes";
+    public static final String PROP_SNAPSHOTS = "snapshots";
+    public static final String PROP_SNAPSHOT_DEPTH = "snapshotDepth";
+    static final String PLACEHOLDER = "<pre><i>Generating code...</i></pre>";
+
+    // Code is generated on a background thread so a big script doesn't
+    // freeze the UI. Only the latest job's result is shown.
+    private static final ExecutorService codeGenerator =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Code generator");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private Future<?> codeJob;
+    private int codeJobId;
+    private String generatedCode = "";
+    private int codeWidth = NodeModel.DEFAULT_WIDTH;
+    private boolean showTypes = false;
+    private NodeFilter nodeFilter = NodeFilter.SYNTHETIC;
+    private boolean snapshots = false;
+    private int snapshotDepth = ValueSnapshot.DEFAULT_DEPTH;
+    // The types looked up since the last stop, shared by every job until
+    // the next one.
+    private InferredTypes types;
+
     public DefaultListModel<Breakpoint> getBreakpoints() {
         return breakpoints;
     }
@@ -82,14 +143,29 @@ public class DebuggerModel {
     }
     
     public synchronized void setCurrentFrame(FrameModel frame) {
+        setCurrentFrame(frame, true);
+    }
+
+    /**
+     * Selects frame and its node. The types come from the frame's typer, so
+     * they are looked up again. If regenerate is true the code is generated
+     * again when the selected script stays the same, to show those types.
+     */
+    private synchronized void setCurrentFrame(FrameModel frame, boolean regenerate) {
         if (Objects.equals(currentFrame, frame) || frame == null) {
             return;
         }
         FrameModel oldFrame = this.currentFrame;
+        NodeModel oldScript = getSelectedScript();
         currentFrame = frame;
+        types = null;
         propertyChangeSupport.firePropertyChange(
                 "currentFrame", oldFrame, frame);
         setSelectedNode(frame.getNode());
+        // setSelectedNode only generates the code for a new script.
+        if (regenerate && showTypes && Objects.equals(oldScript, getSelectedScript())) {
+            generateCode(getSelectedScript(), false);
+        }
     }
     
     public void refreshVars() {
@@ -101,7 +177,7 @@ public class DebuggerModel {
         }
         NodeModel node = getSelectedNode();
         if (node != null && !node.equals(frame.getNode())) {
-            vars.addVariable("selection", node.getNode());
+            vars.addLiveVariable("selection", node.getNode());
         }
         int index = 1;
         if (debugger != null) {
@@ -110,6 +186,11 @@ public class DebuggerModel {
                 index += 1;
             }
         }
+        // Frames are matched between stops by how deep they are. Each is
+        // captured once per stop; selecting another node shows the rows
+        // captured then.
+        List<FrameModel> frames = getStack();
+        vars.capture(frames == null ? 0 : frames.size() - frames.indexOf(frame));
         vars.refresh();
     }
 
@@ -133,27 +214,46 @@ public class DebuggerModel {
     }
     
     public synchronized void stopped(StackEntry state) {
+        // Macros may have changed the AST since the last stop. The outline
+        // is told what changed instead of being built again, so it keeps
+        // the rows that were expanded.
+        ++stops;
+        vars.nextStop();
+        ScriptView view = getScriptView(ast);
+        if (view != null) {
+            view.refresh(stops);
+        }
         List<FrameModel> frames = new LinkedList<>();
         FrameModel f = new FrameModel(state);
         while (f != null) {
             frames.add(f);
             f = f.getParent();
         }
+        // The AST may have changed, and the typer may have resolved more
+        // types.
+        types = null;
+        positionIndex = null;
         setStack(frames);
-        setCurrentFrame(frames.get(0));
+        // The code is generated below, whether or not the script changed.
+        setCurrentFrame(frames.get(0), false);
         setRunning(false);
+        generateCode(getSelectedScript());
     }
     
     public List<NodeModel> getAsts() {
         return asts;
     }
 
-    public NodeModel getSelectedScript() {
-        TreePath path = getSelectedNodePath();
-        if (path == null) {
+    public synchronized NodeModel getSelectedScript() {
+        if (selectedNode == null) {
             return null;
         }
-        return new NodeModel((Node) path.getPathComponent(0));
+        Node node = selectedNode.getNode();
+        AstIndex index = astTree == null ? null : astTree.getIndex();
+        if (index != null && index.contains(node)) {
+            return new NodeModel(index.getRoot());
+        }
+        return new NodeModel(NodeModel.getRoot(node));
     }
     
     public void setSelectedScript(NodeModel script) {
@@ -177,8 +277,16 @@ public class DebuggerModel {
         selectedNode = node;
         NodeModel newScript = getSelectedScript();
         if (!Objects.equals(newScript, oldScript)) {
-            setAst(DefaultOutlineModel.createOutlineModel(
-                    new NodeTreeModel(newScript.getNode()), new NodeRowModel()));
+            ScriptView view = scriptViews.get(newScript);
+            if (view == null) {
+                view = new ScriptView(newScript.getNode(), nodeFilter, stops);
+                scriptViews.put(newScript, view);
+            } else {
+                view.refresh(stops);
+            }
+            astTree = view.tree;
+            setAst(view.outline);
+            generateCode(newScript);
         }
         refreshVars();
         if (!asts.contains(newScript)) {
@@ -194,17 +302,284 @@ public class DebuggerModel {
                 "selectedScript", oldScript, newScript);
     }
     
-    public TreePath getSelectedNodePath() {
+    /**
+     * Returns the code generated for the selected script, or a placeholder
+     * while it is being generated.
+     */
+    public synchronized String getGeneratedCode() {
+        return generatedCode;
+    }
+
+    private synchronized void setGeneratedCode(String code) {
+        String oldCode = generatedCode;
+        generatedCode = code;
+        propertyChangeSupport.firePropertyChange(PROP_GENERATED_CODE, oldCode, code);
+    }
+
+    public synchronized int getCodeWidth() {
+        return codeWidth;
+    }
+
+    /**
+     * Wraps the generated code at width columns, to fit the view. The code
+     * shown stays until it has been laid out again.
+     */
+    public synchronized void setCodeWidth(int width) {
+        int oldWidth = codeWidth;
+        if (width == oldWidth) {
+            return;
+        }
+        codeWidth = width;
+        propertyChangeSupport.firePropertyChange(PROP_CODE_WIDTH, oldWidth, width);
+        generateCode(getSelectedScript(), false);
+    }
+
+    public synchronized boolean isShowTypes() {
+        return showTypes;
+    }
+
+    /**
+     * Annotates the generated code with the types inferred by the current
+     * frame's typer.
+     */
+    public synchronized void setShowTypes(boolean showTypes) {
+        boolean oldShowTypes = this.showTypes;
+        if (showTypes == oldShowTypes) {
+            return;
+        }
+        this.showTypes = showTypes;
+        propertyChangeSupport.firePropertyChange(PROP_SHOW_TYPES, oldShowTypes, showTypes);
+        generateCode(getSelectedScript());
+    }
+
+    public synchronized boolean isShowImplicitNodes() {
+        return nodeFilter == NodeFilter.ALL;
+    }
+
+    /**
+     * Shows the ImplicitNil, ImplicitSelf and Noop nodes, and the empty
+     * annotation lists, in the AST outline.
+     */
+    public synchronized void setShowImplicitNodes(boolean show) {
+        boolean oldShow = isShowImplicitNodes();
+        if (show == oldShow) {
+            return;
+        }
+        nodeFilter = show ? NodeFilter.ALL : NodeFilter.SYNTHETIC;
+        for (ScriptView view : scriptViews.values()) {
+            view.tree.setFilter(nodeFilter);
+        }
+        propertyChangeSupport.firePropertyChange(PROP_SHOW_IMPLICIT_NODES, oldShow, show);
+        propertyChangeSupport.firePropertyChange("selectedNodePath", null, getSelectedNodePath());
+    }
+
+    public synchronized boolean isSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * Freezes the variables at each stop, up to snapshotDepth levels down,
+     * and marks the values that changed since the stop before.
+     */
+    public synchronized void setSnapshots(boolean snapshots) {
+        boolean oldSnapshots = this.snapshots;
+        if (snapshots == oldSnapshots) {
+            return;
+        }
+        this.snapshots = snapshots;
+        vars.setSnapshotDepth(snapshots ? snapshotDepth : 0);
+        propertyChangeSupport.firePropertyChange(PROP_SNAPSHOTS, oldSnapshots, snapshots);
+        if (currentFrame != null) {
+            refreshVars();
+        }
+    }
+
+    public synchronized int getSnapshotDepth() {
+        return snapshotDepth;
+    }
+
+    public synchronized void setSnapshotDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("snapshotDepth must be at least 1");
+        }
+        int oldDepth = snapshotDepth;
+        if (depth == oldDepth) {
+            return;
+        }
+        snapshotDepth = depth;
+        propertyChangeSupport.firePropertyChange(PROP_SNAPSHOT_DEPTH, oldDepth, depth);
+        if (snapshots) {
+            vars.setSnapshotDepth(depth);
+            if (currentFrame != null) {
+                refreshVars();
+            }
+        }
+    }
+
+    private InferredTypes getTypes() {
+        if (!showTypes) {
+            return null;
+        }
+        if (types == null) {
+            types = new InferredTypes(currentFrame == null ? null : currentFrame.getTyper());
+        }
+        return types;
+    }
+
+    private void generateCode(NodeModel script) {
+        generateCode(script, true);
+    }
+
+    /**
+     * Cancels the code being generated and waits for the job to stop. Call
+     * this before the compiler resumes: the job reads the AST and adds clone
+     * listeners to its nodes, which only this thread may do while the
+     * compiler is stopped.
+     */
+    public void stopGeneratingCode() {
+        synchronized (this) {
+            if (codeJob != null) {
+                codeJob.cancel(true);
+                codeJob = null;
+            }
+            // Drops the result of a job that finishes anyway.
+            ++codeJobId;
+        }
+        // The executor has one thread, so this runs once the job is done.
+        Future<?> done = codeGenerator.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.get();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Cancels the code being generated for the previous script and starts
+     * generating it for script. The result is set on the event thread.
+     */
+    private synchronized void generateCode(final NodeModel script, boolean placeholder) {
+        if (codeJob != null) {
+            codeJob.cancel(true);
+            codeJob = null;
+        }
+        if (script == null) {
+            setGeneratedCode("");
+            return;
+        }
+        final int id = ++codeJobId;
+        final int width = codeWidth;
+        final InferredTypes jobTypes = getTypes();
+        if (placeholder) {
+            setGeneratedCode(PLACEHOLDER);
+        }
+        codeJob = codeGenerator.submit(new Runnable() {
+            @Override
+            public void run() {
+                String result;
+                try {
+                    result = script.getGeneratedCode(width, jobTypes);
+                } catch (CancellationException ex) {
+                    return;
+                } catch (Throwable ex) {
+                    // Otherwise the placeholder would stay up for good.
+                    Logger.getLogger(DebuggerModel.class.getName()).log(
+                            Level.SEVERE, "Generating code failed", ex);
+                    result = "<pre><i>Generating code failed: "
+                            + String.valueOf(ex).replace("&", "&amp;")
+                                    .replace("<", "&lt;").replace(">", "&gt;")
+                            + "</i></pre>";
+                }
+                final String code = result;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (DebuggerModel.this) {
+                            if (id == codeJobId) {
+                                codeJob = null;
+                                setGeneratedCode(code);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Selects the innermost node of the selected script whose source covers
+     * offset, if there is one.
+     */
+    public synchronized void selectSourceOffset(int offset) {
+        NodeModel script = getSelectedScript();
+        if (script == null) {
+            return;
+        }
+        if (positionIndex == null || positionRoot != script.getNode()) {
+            positionRoot = script.getNode();
+            positionIndex = new PositionIndex(positionRoot);
+        }
+        Node node = positionIndex.nodeAt(offset);
+        if (node != null) {
+            setSelectedNode(new NodeModel(node));
+        }
+    }
+
+    /**
+     * Remembers where the view of outline was scrolled to, for when its
+     * script is shown again.
+     */
+    public synchronized void setViewPosition(OutlineModel outline, Point position) {
+        ScriptView view = getScriptView(outline);
+        if (view != null && position != null) {
+            view.position = new Point(position);
+        }
+    }
+
+    /**
+     * Returns where the view of the current outline was last scrolled to, or
+     * null if it hasn't been shown before.
+     */
+    public synchronized Point getViewPosition() {
+        ScriptView view = getScriptView(ast);
+        return view == null || view.position == null ? null : new Point(view.position);
+    }
+
+    private ScriptView getScriptView(OutlineModel outline) {
+        for (ScriptView view : scriptViews.values()) {
+            if (view.outline == outline) {
+                return view;
+            }
+        }
+        return null;
+    }
+
+    public synchronized TreePath getSelectedNodePath() {
         if (selectedNode == null) {
             return null;
         }
-        return NodeModel.createPath(selectedNode.getNode());
+        Node node = selectedNode.getNode();
+        TreePath path = astTree == null ? null : astTree.getPath(node);
+        return path != null ? path : NodeModel.createPath(node);
     }
     
     public void setSelectedNodePath(TreePath p) {
-        Node n = (Node)p.getLastPathComponent();
-        if (n != null) {
-            setSelectedNode(new NodeModel(n));
+        // Ranges of children can be selected, but aren't nodes.
+        if (p.getLastPathComponent() instanceof Node) {
+            setSelectedNode(new NodeModel((Node) p.getLastPathComponent()));
         }
     }
     
@@ -229,4 +604,28 @@ public class DebuggerModel {
     public void setDebugger(DebugController debugger) {
         this.debugger = debugger;
     }
+
+    /**
+     * The outline of a script. The outline model keeps which rows are
+     * expanded.
+     */
+    private static final class ScriptView {
+        final NodeTreeModel tree;
+        final OutlineModel outline;
+        Point position;
+        private int refreshed;
+
+        ScriptView(Node script, NodeFilter filter, int stops) {
+            tree = new NodeTreeModel(script, NodeTreeModel.DEFAULT_CHUNK_SIZE, filter);
+            outline = DefaultOutlineModel.createOutlineModel(tree, new NodeRowModel());
+            refreshed = stops;
+        }
+
+        void refresh(int stops) {
+            if (refreshed != stops) {
+                refreshed = stops;
+                tree.refresh();
+            }
+        }
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads the instance fields a class declares, sorted by name.
+ *
+ * The table is made once per class. Each field gets a method handle that
+ * takes the object and returns the field's value as an Object, so reading a
+ * field is one call without the access checks of Field.get(). Fields of a
+ * primitive type or a final class also know the class of their value, so
+ * showing one doesn't need the value's getClass(). A field that can't be made
+ * accessible reads as a string saying why.
+ *
+ * Primitive values are boxed by the getter. Each one becomes the value of a
+ * row in the variables tree, which holds an Object, so a getter returning
+ * the primitive would only move the boxing to the caller.
+ */
+final class FieldAccessors {
+
+    private static final ClassValue<FieldAccessors> TABLES = new ClassValue<FieldAccessors>() {
+        @Override
+        protected FieldAccessors computeValue(Class<?> type) {
+            return new FieldAccessors(type);
+        }
+    };
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+
+    private final String[] names;
+    private final Class<?>[] types;
+    private final boolean[] exact;
+    private final MethodHandle[] getters;
+
+    static FieldAccessors of(Class<?> type) {
+        return TABLES.get(type);
+    }
+
+    private FieldAccessors(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        for (Field f : type.getDeclaredFields()) {
+            if (!Modifier.isStatic(f.getModifiers())) {
+                fields.add(f);
+            }
+        }
+        Collections.sort(fields, new Comparator<Field>() {
+            @Override
+            public int compare(Field o1, Field o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        int size = fields.size();
+        names = new String[size];
+        types = new Class<?>[size];
+        exact = new boolean[size];
+        getters = new MethodHandle[size];
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (int i = 0; i < size; ++i) {
+            Field f = fields.get(i);
+            names[i] = f.getName();
+            types[i] = f.getType();
+            try {
+                f.setAccessible(true);
+                getters[i] = lookup.unreflectGetter(f).asType(GETTER);
+                // An array field can hold an array of a subclass.
+                exact[i] = f.getType().isPrimitive() || !f.getType().isArray()
+                        && Modifier.isFinal(f.getType().getModifiers());
+            } catch (IllegalAccessException | RuntimeException ex) {
+                Object reason = "<unreadable: " + ex + ">";
+                getters[i] = MethodHandles.dropArguments(
+                        MethodHandles.constant(Object.class, reason), 0, Object.class);
+            }
+        }
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Returns the class to show value of field index as.
+     */
+    Class<?> getValueClass(int index, Object value) {
+        return exact[index] || value == null ? types[index] : value.getClass();
+    }
+
+    Object get(Object target, int index) {
+        try {
+            return (Object) getters[index].invokeExact(target);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            // A field getter doesn't throw checked exceptions.
+            throw new IllegalStateException(ex);
+        }
+    }
+}
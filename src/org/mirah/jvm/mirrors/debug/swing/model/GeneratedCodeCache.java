@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import mirah.lang.ast.CloneListener;
+import mirah.lang.ast.Node;
+import org.mirah.jvm.mirrors.debug.prettyprint.GeneratedCode;
+import org.mirah.jvm.mirrors.debug.prettyprint.InferredTypes;
+import org.mirah.jvm.mirrors.debug.prettyprint.NodeWalker;
+
+/**
+ * Generated code for each node. The code is generated for the default
+ * width, and other widths are laid out from the same tokens.
+ *
+ * Every node that went into a cached entry gets a clone listener. The typer
+ * clones nodes when macros rewrite the AST, so a clone drops the entries
+ * for the node itself and marks it changed in the entries of its
+ * ancestors, which only generate the changed part again when they are next
+ * asked for. The generated code refers to the nodes it came from, so the
+ * entries are kept in a small LRU map rather than a weak one.
+ *
+ * Code annotated with types is kept apart, and generated again when it is
+ * asked for with another {@link InferredTypes}.
+ */
+class GeneratedCodeCache implements CloneListener {
+
+    static final GeneratedCodeCache INSTANCE = new GeneratedCodeCache();
+    private static final int MAX_ENTRIES = 32;
+
+    // Nodes don't override equals(), so the maps are keyed by identity.
+    private final Map<Node, GeneratedCode> entries = lru();
+    private final Map<Node, GeneratedCode> typed = lru();
+    private final Map<Node, Boolean> watched = new WeakHashMap<>();
+
+    private static Map<Node, GeneratedCode> lru() {
+        return new LinkedHashMap<Node, GeneratedCode>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Node, GeneratedCode> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    String getGeneratedCode(Node node, int width) {
+        return getGeneratedCode(node, width, null);
+    }
+
+    /**
+     * Returns the code for node wrapped at width columns, annotated with
+     * types unless types is null.
+     */
+    String getGeneratedCode(Node node, int width, InferredTypes types) {
+        Map<Node, GeneratedCode> cache = types == null ? entries : typed;
+        GeneratedCode code;
+        synchronized (this) {
+            code = cache.get(node);
+        }
+        if (code != null && code.getTypes() == types) {
+            List<Node> updated = code.update();
+            synchronized (this) {
+                for (Node n : updated) {
+                    watch(n);
+                }
+            }
+            return code.getText(width);
+        }
+        code = new GeneratedCode(node, NodeModel.DEFAULT_WIDTH, types);
+        synchronized (this) {
+            watch(node);
+            cache.put(node, code);
+        }
+        return code.getText(width);
+    }
+
+    /**
+     * Drops the code cached for node, and marks it changed in the code of
+     * every node containing it.
+     */
+    synchronized void invalidate(Node node) {
+        entries.remove(node);
+        typed.remove(node);
+        for (Node n = node.parent(); n != null; n = n.parent()) {
+            nodeChanged(entries.get(n), node);
+            nodeChanged(typed.get(n), node);
+        }
+    }
+
+    private static void nodeChanged(GeneratedCode code, Node node) {
+        if (code != null) {
+            code.nodeChanged(node);
+        }
+    }
+
+    @Override
+    public void wasCloned(Node original, Node clone) {
+        invalidate(original);
+    }
+
+    private void watch(Node node) {
+        new NodeWalker() {
+            @Override
+            protected boolean enter(Node node) {
+                if (watched.put(node, Boolean.TRUE) == null) {
+                    node.whenCloned(GeneratedCodeCache.this);
+                }
+                return true;
+            }
+        }.walk(node);
+    }
+}
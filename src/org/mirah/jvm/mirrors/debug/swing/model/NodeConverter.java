@@ -36,7 +36,9 @@ public class NodeConverter extends Converter {
     @Override
     public Object convertReverse(Object value) {
         System.out.println(value);
-        return new NodeModel((Node) ((Map)value).get("column0"));
+        Object node = ((Map)value).get("column0");
+        // A range of children doesn't change the selected node.
+        return node instanceof Node ? new NodeModel((Node) node) : null;
     }
     
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import mirah.lang.ast.AnnotationList;
+import mirah.lang.ast.ImplicitNil;
+import mirah.lang.ast.ImplicitSelf;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.Noop;
+
+/**
+ * Which nodes the AST outline hides, with their subtrees. Some kinds of
+ * node are only hidden when they have no children.
+ */
+public final class NodeFilter {
+
+    /** Shows every node. */
+    public static final NodeFilter ALL = new NodeFilter(
+            Collections.<Class<? extends Node>>emptyList(),
+            Collections.<Class<? extends Node>>emptyList());
+
+    /** Hides the nodes the parser adds where the source has nothing. */
+    public static final NodeFilter SYNTHETIC = new NodeFilter(
+            implicitNodes(),
+            Collections.<Class<? extends Node>>singletonList(AnnotationList.class));
+
+    private final List<Class<? extends Node>> hidden;
+    private final List<Class<? extends Node>> hiddenWhenEmpty;
+
+    public NodeFilter(Collection<Class<? extends Node>> hidden,
+            Collection<Class<? extends Node>> hiddenWhenEmpty) {
+        this.hidden = new ArrayList<>(hidden);
+        this.hiddenWhenEmpty = new ArrayList<>(hiddenWhenEmpty);
+    }
+
+    /**
+     * Returns whether node is shown, not knowing its children.
+     */
+    public boolean isVisible(Node node) {
+        return !isA(node, hidden);
+    }
+
+    /**
+     * Returns whether node is shown when it has no children.
+     */
+    public boolean isVisibleWhenEmpty(Node node) {
+        return isVisible(node) && !isA(node, hiddenWhenEmpty);
+    }
+
+    private static boolean isA(Node node, List<Class<? extends Node>> classes) {
+        for (Class<? extends Node> klass : classes) {
+            if (klass.isInstance(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Class<? extends Node>> implicitNodes() {
+        List<Class<? extends Node>> classes = new ArrayList<>();
+        classes.add(ImplicitNil.class);
+        classes.add(ImplicitSelf.class);
+        classes.add(Noop.class);
+        return classes;
+    }
+}
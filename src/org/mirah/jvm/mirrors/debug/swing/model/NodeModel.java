@@ -17,9 +17,6 @@
 package org.mirah.jvm.mirrors.debug.swing.model;
 
 import java.io.File;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Objects;
 import javax.swing.tree.TreePath;
 import mirah.lang.ast.Fixnum;
@@ -29,10 +26,12 @@ import mirah.lang.ast.Node;
 import mirah.lang.ast.Position;
 import mirah.lang.ast.Script;
 import mirah.lang.ast.SimpleString;
-import org.mirah.jvm.mirrors.debug.prettyprint.MirahSourceGenerator;
+import org.mirah.jvm.mirrors.debug.prettyprint.InferredTypes;
 
 public class NodeModel {
 
+    public static final int DEFAULT_WIDTH = 80;
+
     public NodeModel(Node node) {
         this.node = node;
     }
@@ -58,9 +57,31 @@ public class NodeModel {
     }
     
     public String getGeneratedCode() {
-        MirahSourceGenerator generator = new MirahSourceGenerator();
-        node.accept(generator, null);
-        return generator.toString();
+        return getGeneratedCode(DEFAULT_WIDTH);
+    }
+
+    /**
+     * Returns the code generated for this node, wrapped at width columns.
+     * The code is cached until the node or one of its ancestors is cloned.
+     */
+    public String getGeneratedCode(int width) {
+        return GeneratedCodeCache.INSTANCE.getGeneratedCode(node, width);
+    }
+
+    /**
+     * Returns the code generated for this node annotated with types, which
+     * are only looked up once for each {@link InferredTypes}.
+     */
+    public String getGeneratedCode(int width, InferredTypes types) {
+        return GeneratedCodeCache.INSTANCE.getGeneratedCode(node, width, types);
+    }
+
+    /**
+     * Drops the cached code for this node and its ancestors, after the AST
+     * has been changed without cloning.
+     */
+    public void invalidateGeneratedCode() {
+        GeneratedCodeCache.INSTANCE.invalidate(node);
     }
     
     public int getStartChar() {
@@ -122,13 +143,25 @@ public class NodeModel {
     }
 
     public static TreePath createPath(Node n) {
-        List<Node> elems = new LinkedList();
-        while (n != null) {
-            elems.add(n);
+        int depth = 0;
+        for (Node p = n; p != null; p = p.parent()) {
+            ++depth;
+        }
+        Object[] elems = new Object[depth];
+        for (Node p = n; p != null; p = p.parent()) {
+            elems[--depth] = p;
+        }
+        return new TreePath(elems);
+    }
+
+    /**
+     * Returns the outermost ancestor of n, usually its script.
+     */
+    static Node getRoot(Node n) {
+        while (n.parent() != null) {
             n = n.parent();
         }
-        Collections.reverse(elems);
-        return new TreePath(elems.toArray());
+        return n;
     }
     private final Node node;
     private TreePath path;
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import mirah.lang.ast.Node;
+
+/**
+ * A row grouping the children start to end - 1 of a node with too many
+ * children to show at once.
+ *
+ * Ranges are made when they are asked for and hold no children, so two
+ * ranges over the same children are equal, which keeps them expanded.
+ */
+public final class NodeRange {
+    final Node parent;
+    final int start;
+    final int end;
+    // How many children each row in this range holds; 1 if its rows are
+    // the children themselves.
+    final int span;
+
+    NodeRange(Node parent, int start, int end, int span) {
+        this.parent = parent;
+        this.start = start;
+        this.end = end;
+        this.span = span;
+    }
+
+    public Node getParent() {
+        return parent;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + System.identityHashCode(parent);
+        hash = 31 * hash + start;
+        hash = 31 * hash + end;
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof NodeRange)) {
+            return false;
+        }
+        NodeRange other = (NodeRange) obj;
+        return parent == other.parent && start == other.start
+                && end == other.end && span == other.span;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + ".." + (end - 1) + "]";
+    }
+}
@@ -28,6 +28,9 @@ public class NodeRenderData implements RenderDataProvider {
 
     @Override
     public String getDisplayName(Object o) {
+        if (o instanceof NodeRange) {
+            return o.toString();
+        }
         return o.getClass().getSimpleName();
     }
 
@@ -16,11 +16,17 @@
  
 package org.mirah.jvm.mirrors.debug.swing.model;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
 import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
@@ -30,12 +36,73 @@ import mirah.lang.ast.NodeScanner;
 import mirah.lang.ast.Null;
 import mirah.lang.ast.SimpleString;
 
+/**
+ * The tree of an AST. A node with more than chunkSize children gets
+ * {@link NodeRange} rows of chunkSize children instead, nested until no row
+ * has more than chunkSize children, so expanding it lays out a few rows.
+ *
+ * The nodes that the filter hides are left out of the index, so the
+ * children of a node are looked up the same way whether any are hidden.
+ */
 class NodeTreeModel implements TreeModel {
+    private static final int MAX_CACHED_NODES = 1024;
+    static final int DEFAULT_CHUNK_SIZE = 100;
+
     private Node root;
-    private final Map<Object, List<Node>> childCache = new HashMap<>();
+    private final int chunkSize;
+    private volatile NodeFilter filter;
+    private volatile AstIndex index;
+    private final List<TreeModelListener> listeners = new LinkedList<>();
+    // Children of nodes added to the tree after the index was built.
+    private final WeakIdentityCache<Node, Node[]> childCache =
+            new WeakIdentityCache<>(MAX_CACHED_NODES);
 
     public NodeTreeModel(Node root) {
+        this(root, DEFAULT_CHUNK_SIZE);
+    }
+
+    public NodeTreeModel(Node root, int chunkSize) {
+        this(root, chunkSize, NodeFilter.ALL);
+    }
+
+    public NodeTreeModel(Node root, int chunkSize, NodeFilter filter) {
+        if (chunkSize < 2) {
+            throw new IllegalArgumentException("chunkSize must be at least 2");
+        }
         this.root = root;
+        this.chunkSize = chunkSize;
+        this.filter = filter;
+        this.index = new AstIndex(root, filter);
+    }
+
+    NodeFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Shows the nodes that filter doesn't hide. Must be called on the event
+     * thread.
+     */
+    void setFilter(NodeFilter filter) {
+        if (filter == this.filter) {
+            return;
+        }
+        this.filter = filter;
+        index = new AstIndex(root, filter);
+        childCache.clear();
+        fireStructureChanged(new TreePath(root));
+    }
+
+    AstIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the path from the root to node, through the ranges it is in,
+     * or null if node isn't in the tree.
+     */
+    TreePath getPath(Node node) {
+        return path(index, node);
     }
 
     @Override
@@ -45,12 +112,25 @@ class NodeTreeModel implements TreeModel {
 
     @Override
     public Object getChild(Object parent, int index) {
-        return getList(parent).get(index);
+        if (parent instanceof NodeRange) {
+            NodeRange range = (NodeRange) parent;
+            return slot(range.parent, range.start, range.end, range.span, index);
+        }
+        Node[] children = getChildren((Node) parent);
+        if (children.length <= chunkSize) {
+            return children[index];
+        }
+        return slot((Node) parent, 0, children.length, span(children.length), index);
     }
 
     @Override
     public int getChildCount(Object parent) {
-        return getList(parent).size();
+        if (parent instanceof NodeRange) {
+            NodeRange range = (NodeRange) parent;
+            return count(range.end - range.start, range.span);
+        }
+        int count = getChildren((Node) parent).length;
+        return count <= chunkSize ? count : count(count, span(count));
     }
 
     @Override
@@ -65,36 +145,269 @@ class NodeTreeModel implements TreeModel {
 
     @Override
     public int getIndexOfChild(Object parent, Object child) {
-        return getList(parent).indexOf(child);
+        Node node;
+        int start;
+        int childSpan;
+        if (parent instanceof NodeRange) {
+            NodeRange range = (NodeRange) parent;
+            node = range.parent;
+            start = range.start;
+            childSpan = range.span;
+        } else {
+            node = (Node) parent;
+            int count = getChildren(node).length;
+            if (count <= chunkSize) {
+                return indexOf(node, child);
+            }
+            start = 0;
+            childSpan = span(count);
+        }
+        if (child instanceof NodeRange) {
+            NodeRange range = (NodeRange) child;
+            if (range.parent != node || range.start < start || childSpan == 1) {
+                return -1;
+            }
+            int i = (range.start - start) / childSpan;
+            return i < getChildCount(parent) && range.equals(getChild(parent, i)) ? i : -1;
+        } else if (childSpan != 1) {
+            return -1;
+        }
+        int i = indexOf(node, child) - start;
+        return i >= 0 && i < getChildCount(parent) ? i : -1;
     }
 
     @Override
     public void addTreeModelListener(TreeModelListener l) {
+        listeners.add(l);
     }
 
     @Override
     public void removeTreeModelListener(TreeModelListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Scans the tree again, and tells the listeners which children were
+     * removed and inserted since the last scan. Must be called on the event
+     * thread.
+     */
+    void refresh() {
+        AstIndex old = index;
+        AstIndex updated = new AstIndex(root, filter);
+        index = updated;
+        childCache.clear();
+        if (listeners.isEmpty()) {
+            return;
+        }
+        // Only the nodes that kept their parent are compared; the subtree of
+        // a node that was inserted comes with it.
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node parent = pending.pop();
+            Node[] before = old.getChildren(parent);
+            Node[] after = updated.getChildren(parent);
+            Set<Node> kept = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+            if (!sameNodes(before, after)) {
+                TreePath path = path(updated, parent);
+                if (before.length > chunkSize || after.length > chunkSize
+                        || !childrenChanged(path, before, after, kept)) {
+                    fireStructureChanged(path);
+                    continue;
+                }
+            } else {
+                Collections.addAll(kept, after);
+            }
+            for (Node child : after) {
+                if (kept.contains(child)) {
+                    pending.push(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fires the removals and insertions that turn before into after, and
+     * adds the children in both to kept. Returns false without firing
+     * anything if the children in both were reordered. The children must
+     * not be in ranges.
+     */
+    private boolean childrenChanged(TreePath path, Node[] before, Node[] after, Set<Node> kept) {
+        Set<Node> old = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        Collections.addAll(old, before);
+        for (Node child : after) {
+            if (old.contains(child)) {
+                kept.add(child);
+            }
+        }
+        List<Integer> removed = new ArrayList<>();
+        List<Integer> inserted = new ArrayList<>();
+        int j = 0;
+        for (int i = 0; i < before.length; ++i) {
+            if (!kept.contains(before[i])) {
+                removed.add(i);
+                continue;
+            }
+            while (!kept.contains(after[j])) {
+                inserted.add(j++);
+            }
+            if (after[j++] != before[i]) {
+                return false;
+            }
+        }
+        for (; j < after.length; ++j) {
+            if (kept.contains(after[j])) {
+                return false;
+            }
+            inserted.add(j);
+        }
+        if (!removed.isEmpty()) {
+            TreeModelEvent event = event(path, removed, before);
+            for (TreeModelListener l : listeners) {
+                l.treeNodesRemoved(event);
+            }
+        }
+        if (!inserted.isEmpty()) {
+            TreeModelEvent event = event(path, inserted, after);
+            for (TreeModelListener l : listeners) {
+                l.treeNodesInserted(event);
+            }
+        }
+        return true;
+    }
+
+    private TreeModelEvent event(TreePath path, List<Integer> indexes, Node[] children) {
+        int[] childIndices = new int[indexes.size()];
+        Object[] changed = new Object[indexes.size()];
+        for (int i = 0; i < childIndices.length; ++i) {
+            childIndices[i] = indexes.get(i);
+            changed[i] = children[childIndices[i]];
+        }
+        return new TreeModelEvent(this, path, childIndices, changed);
+    }
+
+    private void fireStructureChanged(TreePath path) {
+        TreeModelEvent event = new TreeModelEvent(this, path);
+        for (TreeModelListener l : listeners) {
+            l.treeStructureChanged(event);
+        }
+    }
+
+    private static boolean sameNodes(Node[] a, Node[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; ++i) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
     }
     
-    private synchronized List<Node> getList(final Object parent) {
-        if (childCache.containsKey(parent)) {
-            return childCache.get(parent);
-        } else {
-            final List<Node> children = new ArrayList<>();
-            NodeScanner scanner = new NodeScanner() {
-                @Override
-                public boolean enterDefault(Node node, Object arg) {
-                    if (node == parent) {
-                        return true;
-                    } else if (node != null) {
-                        children.add(node);
-                    }
-                    return false;
+    private int span(int count) {
+        return Chunks.span(count, chunkSize);
+    }
+
+    private int childSpan(int count) {
+        return Chunks.childSpan(count, chunkSize);
+    }
+
+    private static int count(int size, int span) {
+        return Chunks.count(size, span);
+    }
+
+    /**
+     * Returns the i-th child of a row holding the children start to end - 1
+     * of parent, in pieces of span.
+     */
+    private Object slot(Node parent, int start, int end, int span, int i) {
+        int from = start + i * span;
+        if (span == 1) {
+            return getChildren(parent)[from];
+        }
+        int to = Math.min(end, from + span);
+        return new NodeRange(parent, from, to, childSpan(to - from));
+    }
+
+    private TreePath path(AstIndex index, Node node) {
+        TreePath path = index.getPath(node);
+        if (path == null) {
+            return null;
+        }
+        Object[] nodes = path.getPath();
+        List<Object> chunked = null;
+        for (int i = 0; i < nodes.length - 1; ++i) {
+            Node parent = (Node) nodes[i];
+            int count = index.getChildren(parent).length;
+            if (count <= chunkSize) {
+                if (chunked != null) {
+                    chunked.add(parent);
+                }
+                continue;
+            }
+            if (chunked == null) {
+                chunked = new ArrayList<>(Arrays.asList(nodes).subList(0, i));
+            }
+            chunked.add(parent);
+            int at = index.getIndexOfChild(parent, (Node) nodes[i + 1]);
+            int end = count;
+            for (int span = span(count); span > 1; ) {
+                int from = at - at % span;
+                end = Math.min(end, from + span);
+                span = childSpan(end - from);
+                chunked.add(new NodeRange(parent, from, end, span));
+            }
+        }
+        if (chunked == null) {
+            return path;
+        }
+        chunked.add(nodes[nodes.length - 1]);
+        return new TreePath(chunked.toArray());
+    }
+
+    private Node[] getChildren(Node parent) {
+        Node[] children = index.getChildren(parent);
+        return children != null ? children : getList(parent);
+    }
+
+    private int indexOf(Node parent, Object child) {
+        if (index.contains(parent)) {
+            return index.getIndexOfChild(parent, (Node) child);
+        }
+        Node[] children = getList(parent);
+        for (int i = 0; i < children.length; ++i) {
+            if (children[i] == child) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Node[] getList(final Object parent) {
+        Node[] cached = childCache.get((Node) parent);
+        if (cached != null) {
+            return cached;
+        }
+        final List<Node> children = new ArrayList<>();
+        NodeScanner scanner = new NodeScanner() {
+            @Override
+            public boolean enterDefault(Node node, Object arg) {
+                if (node == parent) {
+                    return true;
+                } else if (node != null && filter.isVisible(node)) {
+                    children.add(node);
                 }
-            };
-            scanner.scan((Node)parent);
-            childCache.put(parent, children);
-            return children;
+                return false;
+            }
+        };
+        scanner.scan((Node)parent);
+        for (Iterator<Node> i = children.iterator(); i.hasNext(); ) {
+            Node child = i.next();
+            if (!filter.isVisibleWhenEmpty(child) && getChildren(child).length == 0) {
+                i.remove();
+            }
         }
+        return childCache.putIfAbsent((Node) parent, children.toArray(new Node[children.size()]));
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.Position;
+import org.mirah.jvm.mirrors.debug.prettyprint.NodeWalker;
+
+/**
+ * Finds the innermost node at a character offset in a script's source.
+ *
+ * The source ranges of the nodes are cut into pieces at every start and
+ * end, and each piece records the innermost node covering it, like the
+ * events of a {@link org.mirah.jvm.mirrors.debug.prettyprint.SourceMap}.
+ * Building that is a sort and one sweep, and a lookup is a binary search.
+ * Ranges nest, except for nodes that macros made up with a copy of another
+ * node's position. Of the ranges covering a piece, the one that started
+ * last wins, then the shorter one, then the deeper node, then the later
+ * one in the tree.
+ */
+final class PositionIndex {
+
+    private int[] offsets;
+    private Node[] nodes;
+    private int size = 0;
+
+    PositionIndex(Node root) {
+        final String source = sourceName(root);
+        final List<Range> ranges = new ArrayList<>();
+        new NodeWalker() {
+            private int depth = 0;
+
+            @Override
+            protected boolean enter(Node node) {
+                Position p = node.position();
+                if (p != null && p.endChar() > p.startChar()
+                        && (source == null || source.equals(sourceName(node)))) {
+                    ranges.add(new Range(node, p.startChar(), p.endChar(), depth));
+                }
+                ++depth;
+                return true;
+            }
+
+            @Override
+            protected void exit(Node node) {
+                --depth;
+            }
+        }.walk(root);
+        build(ranges);
+    }
+
+    /**
+     * Returns the innermost node whose source covers offset, or null.
+     */
+    Node nodeAt(int offset) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] <= offset) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found == -1 ? null : nodes[found];
+    }
+
+    private void build(List<Range> ranges) {
+        Collections.sort(ranges, new Comparator<Range>() {
+            @Override
+            public int compare(Range a, Range b) {
+                if (a.start != b.start) {
+                    return Integer.compare(a.start, b.start);
+                }
+                if (a.end != b.end) {
+                    return Integer.compare(b.end, a.end);
+                }
+                return Integer.compare(a.depth, b.depth);
+            }
+        });
+        int[] ends = new int[ranges.size()];
+        for (int i = 0; i < ends.length; ++i) {
+            ends[i] = ranges.get(i).end;
+        }
+        Arrays.sort(ends);
+        offsets = new int[ranges.size() * 2 + 1];
+        nodes = new Node[offsets.length];
+        // The ranges that have started, innermost on top. Ranges that have
+        // ended are only dropped once they reach the top.
+        Range[] open = new Range[16];
+        int depth = 0;
+        int next = 0;
+        int nextEnd = 0;
+        while (next < ranges.size() || nextEnd < ends.length) {
+            int offset = next < ranges.size()
+                    ? Math.min(ranges.get(next).start, ends[nextEnd]) : ends[nextEnd];
+            while (next < ranges.size() && ranges.get(next).start == offset) {
+                if (depth == open.length) {
+                    open = Arrays.copyOf(open, depth * 2);
+                }
+                open[depth++] = ranges.get(next++);
+            }
+            while (nextEnd < ends.length && ends[nextEnd] == offset) {
+                ++nextEnd;
+            }
+            while (depth > 0 && open[depth - 1].end <= offset) {
+                open[--depth] = null;
+            }
+            Node node = depth == 0 ? null : open[depth - 1].node;
+            if (size == 0 || nodes[size - 1] != node) {
+                offsets[size] = offset;
+                nodes[size] = node;
+                ++size;
+            }
+        }
+    }
+
+    private static String sourceName(Node node) {
+        Position p = node.position();
+        return p == null || p.source() == null ? null : p.source().name();
+    }
+
+    private static final class Range {
+        final Node node;
+        final int start;
+        final int end;
+        final int depth;
+
+        Range(Node node, int start, int end, int depth) {
+            this.node = node;
+            this.start = start;
+            this.end = end;
+            this.depth = depth;
+        }
+    }
+}
@@ -17,60 +17,59 @@
 package org.mirah.jvm.mirrors.debug.swing.model;
 
 import java.lang.reflect.Array;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import mirah.lang.ast.Node;
 import org.mirah.typer.TypeFuture;
 import org.mirah.typer.Typer;
 
+/**
+ * How a value of some class shows in the variables tree. Type models don't
+ * depend on the frame, so one model per class is shared by every tree; the
+ * tree passes itself in as the lookup when it asks for children.
+ */
 interface TypeModel<T> {
     boolean isLeaf(T value);
-    VariableModel getChild(T parent, int index);
-    int getChildCount(T parent);
+    VariableModel getChild(TypeModelLookup lookup, T parent, int index);
+    int getChildCount(TypeModelLookup lookup, T parent);
 }
 
 public interface TypeModelLookup {
     <T> TypeModel<T> lookup(Class<T> klass);
+
+    /**
+     * Returns the typer to show the types of nodes from, or null.
+     */
+    Typer getTyper();
+
+    /**
+     * Returns the elements of collection as they were when it was first
+     * expanded in this tree.
+     */
+    Object[] snapshot(Collection<?> collection);
+
+    /**
+     * Returns copies of the entries of map as they were when it was first
+     * expanded in this tree.
+     */
+    Map.Entry<?, ?>[] snapshot(Map<?, ?> map);
 }
 
 class ClassModel<T> implements TypeModel<T> {
     private final Class<T> type;
-    private final List<Field> fields;
+    private final FieldAccessors fields;
     private final TypeModel<? super T> parentType;
-    protected final TypeModelLookup lookup;
 
     public TypeModel<? super T> getParentType() {
         return parentType;
     }
 
-    public ClassModel(Class<T> type, TypeModel<? super T> parentType, TypeModelLookup lookup) {
+    public ClassModel(Class<T> type, TypeModel<? super T> parentType) {
         this.type = type;
         this.parentType = parentType;
-        this.lookup = lookup;
-        Field[] allFields = type.getDeclaredFields();
-        fields = new ArrayList<>(allFields.length);
-        for (Field f : allFields) {
-            if (!Modifier.isStatic(f.getModifiers())) {
-                f.setAccessible(true);
-                fields.add(f);
-            }
-        }
-        Collections.sort(fields, new Comparator<Field>() {
-            @Override
-            public int compare(Field o1, Field o2) {
-                return o1.getName().compareTo(o2.getName());
-            }
-        });
+        this.fields = FieldAccessors.of(type);
     }
 
     @Override
@@ -87,46 +86,39 @@ class ClassModel<T> implements TypeModel<T> {
     }
     
     @Override
-    public VariableModel getChild(T parent, int index) {
+    public VariableModel getChild(TypeModelLookup lookup, T parent, int index) {
         if (index >= fields.size()) {
-            VariableModel result = parentType.getChild(parent, index - fields.size());
+            VariableModel result = parentType.getChild(lookup, parent, index - fields.size());
             result.setIndex(index);
             return result;
         }
-        Field f = fields.get(index);
-        Object value = null;
-        try {
-            value = f.get(parent);
-        } catch (IllegalArgumentException | IllegalAccessException ex) {
-            Logger.getLogger(ClassModel.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        Class klass = value == null ? f.getType() : value.getClass();
-        return new VariableModel(f.getName(), lookup.lookup(klass), value, index);
+        Object value = fields.get(parent, index);
+        Class klass = fields.getValueClass(index, value);
+        return new VariableModel(fields.getName(index), lookup.lookup(klass), value, index);
     }
 
     @Override
-    public int getChildCount(T parent) {
+    public int getChildCount(TypeModelLookup lookup, T parent) {
         return fields.size() +
-                (parentType == null ? 0 : parentType.getChildCount(parent));
+                (parentType == null ? 0 : parentType.getChildCount(lookup, parent));
     }
 }
 
 class NodeTypeModel<T extends Node> extends ClassModel<T> {
-    private Typer typer;
 
-    public NodeTypeModel(Class<T> type, TypeModel<? super T> parentType, TypeModelLookup lookup, Typer typer) {
-        super(type, parentType, lookup);
-        this.typer = typer;
+    public NodeTypeModel(Class<T> type, TypeModel<? super T> parentType) {
+        super(type, parentType);
     }
 
     @Override
-    public int getChildCount(T parent) {
-        return 1 + super.getChildCount(parent);
+    public int getChildCount(TypeModelLookup lookup, T parent) {
+        return 1 + super.getChildCount(lookup, parent);
     }
 
     @Override
-    public VariableModel getChild(T parent, int index) {
+    public VariableModel getChild(TypeModelLookup lookup, T parent, int index) {
         if (index == 0) {
+            Typer typer = lookup.getTyper();
             TypeFuture future = typer == null ? null : typer.getInferredType(parent);
             TypeModel type;
             if (future == null) {
@@ -136,7 +128,7 @@ class NodeTypeModel<T extends Node> extends ClassModel<T> {
             }
             return new VariableModel("(type)", type, future, 0);
         }
-        VariableModel result = super.getChild(parent, index - 1);
+        VariableModel result = super.getChild(lookup, parent, index - 1);
         result.setIndex(index);
         return result;
     }
@@ -145,11 +137,9 @@ class NodeTypeModel<T extends Node> extends ClassModel<T> {
 
 class CollectionModel<T extends Collection> implements TypeModel<T> {
     private final Class klass;
-    private final TypeModelLookup lookup;
 
-    public CollectionModel(Class<T> klass, TypeModelLookup lookup) {
+    public CollectionModel(Class<T> klass) {
         this.klass = klass;
-        this.lookup = lookup;
     }
     
     @Override
@@ -163,37 +153,99 @@ class CollectionModel<T extends Collection> implements TypeModel<T> {
     }
 
     @Override
-    public VariableModel getChild(Collection parent, int index) {
+    public VariableModel getChild(TypeModelLookup lookup, Collection parent, int index) {
         if (parent == null) {
             return null;
         }
-        Object child;
-        if (parent instanceof List) {
-            child = ((List)parent).get(index);
-        } else {
-            Iterator it = parent.iterator();
-            for (int i = 0; i < index; ++i) {
-                it.next();
-            }
-            child = it.next();
+        return Slice.row(lookup, lookup.snapshot(parent), Slice.Kind.COLLECTION, index);
+    }
+
+    @Override
+    public int getChildCount(TypeModelLookup lookup, Collection parent) {
+        if (parent == null) {
+            return 0;
         }
-        TypeModel type;
-        if (child == null) {
-            type = lookup.lookup(Object.class);
-        } else {
-            type = lookup.lookup(child.getClass());
+        return Slice.rows(lookup.snapshot(parent).length);
+    }
+
+}
+
+class MapModel<T extends Map> implements TypeModel<T> {
+    private final Class klass;
+
+    public MapModel(Class<T> klass) {
+        this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+        return klass.toString();
+    }
+
+    @Override
+    public boolean isLeaf(Map value) {
+        return value == null;
+    }
+
+    @Override
+    public VariableModel getChild(TypeModelLookup lookup, Map parent, int index) {
+        if (parent == null) {
+            return null;
         }
-        return new VariableModel("[" + index + "]", type, child, index);
+        return Slice.row(lookup, lookup.snapshot(parent), Slice.Kind.MAP, index);
     }
 
     @Override
-    public int getChildCount(Collection parent) {
+    public int getChildCount(TypeModelLookup lookup, Map parent) {
         if (parent == null) {
             return 0;
         }
-        return parent.size();
+        return Slice.rows(lookup.snapshot(parent).length);
+    }
+}
+
+/**
+ * A map entry, shown as its value with a (key) row before the value's own
+ * rows.
+ */
+class MapEntryModel implements TypeModel<Map.Entry> {
+    private final TypeModel valueType;
+
+    public MapEntryModel(TypeModel valueType) {
+        this.valueType = valueType;
+    }
+
+    TypeModel getValueType() {
+        return valueType;
+    }
+
+    @Override
+    public String toString() {
+        return valueType.toString();
+    }
+
+    @Override
+    public boolean isLeaf(Map.Entry value) {
+        return false;
+    }
+
+    @Override
+    public VariableModel getChild(TypeModelLookup lookup, Map.Entry parent, int index) {
+        if (index == 0) {
+            Object key = parent.getKey();
+            Class klass = key == null ? Object.class : key.getClass();
+            return new VariableModel("(key)", lookup.lookup(klass), key, 0);
+        }
+        VariableModel result = valueType.getChild(lookup, parent.getValue(), index - 1);
+        result.setIndex(index);
+        return result;
     }
 
+    @Override
+    public int getChildCount(TypeModelLookup lookup, Map.Entry parent) {
+        Object value = parent.getValue();
+        return 1 + (valueType.isLeaf(value) ? 0 : valueType.getChildCount(lookup, value));
+    }
 }
 
 class RootTypeModel implements TypeModel<List<VariableModel>> {
@@ -203,13 +255,13 @@ class RootTypeModel implements TypeModel<List<VariableModel>> {
     }
 
     @Override
-    public VariableModel getChild(List<VariableModel> parent, int index) {
+    public VariableModel getChild(TypeModelLookup lookup, List<VariableModel> parent, int index) {
         //return ((List<VariableModel>)parent.getValue()).get(index);
         return parent.get(index);
     }
 
     @Override
-    public int getChildCount(List<VariableModel> parent) {
+    public int getChildCount(TypeModelLookup lookup, List<VariableModel> parent) {
         //return ((List<VariableModel>)parent.getValue()).size();
         return parent.size();
     }
@@ -217,11 +269,9 @@ class RootTypeModel implements TypeModel<List<VariableModel>> {
 
 class ArrayModel<T> implements TypeModel<T> {
     private final Class type;
-    private final TypeModelLookup lookup;
 
-    public ArrayModel(Class type, TypeModelLookup lookup) {
+    public ArrayModel(Class type) {
         this.type = type;
-        this.lookup = lookup;
     }
     
     @Override
@@ -230,15 +280,158 @@ class ArrayModel<T> implements TypeModel<T> {
     }
 
     @Override
-    public VariableModel getChild(Object parent, int index) {
-        Object value = Array.get(parent, index);
-        Class klass = value == null ? type.getComponentType() : value.getClass();
-        return new VariableModel("" + index, lookup.lookup(klass), parent, index);
+    public VariableModel getChild(TypeModelLookup lookup, Object parent, int index) {
+        return Slice.row(lookup, parent, Slice.Kind.ARRAY, index);
     }
 
     @Override
-    public int getChildCount(Object parent) {
-        return Array.getLength(parent);
+    public int getChildCount(TypeModelLookup lookup, Object parent) {
+        return Slice.rows(Array.getLength(parent));
     }
     
-}
\ No newline at end of file
+}
+
+/**
+ * Some of the elements of an array, or of a collection or map copied to
+ * one. More than PAGE_SIZE elements are shown as ranges like [0..999],
+ * nested until no row has more than PAGE_SIZE children, and the rows of a
+ * range are made when it is expanded.
+ */
+final class Slice {
+    static final int PAGE_SIZE = 1000;
+
+    /** Where the elements came from, which decides how their rows look. */
+    enum Kind {
+        ARRAY, COLLECTION, MAP
+    }
+
+    final Object elements;
+    final Kind kind;
+    final int start;
+    final int end;
+
+    Slice(Object elements, Kind kind, int start, int end) {
+        this.elements = elements;
+        this.kind = kind;
+        this.start = start;
+        this.end = end;
+    }
+
+    int size() {
+        return end - start;
+    }
+
+    /**
+     * Returns the number of rows that show size elements.
+     */
+    static int rows(int size) {
+        return Chunks.count(size, Chunks.childSpan(size, PAGE_SIZE));
+    }
+
+    /**
+     * Returns the index-th row showing all of elements. Array elements are
+     * named by index, collection elements like list indexes, and map
+     * entries by their key.
+     */
+    static VariableModel row(TypeModelLookup lookup, Object elements, Kind kind, int index) {
+        return row(lookup, elements, kind, 0, Array.getLength(elements), index);
+    }
+
+    VariableModel row(TypeModelLookup lookup, int index) {
+        return row(lookup, elements, kind, start, end, index);
+    }
+
+    private static VariableModel row(TypeModelLookup lookup, Object elements, Kind kind,
+            int start, int end, int index) {
+        int span = Chunks.childSpan(end - start, PAGE_SIZE);
+        int from = start + index * span;
+        if (span > 1) {
+            Slice slice = new Slice(elements, kind, from, Math.min(end, from + span));
+            return new VariableModel(slice.toString(), SliceModel.INSTANCE, slice, index);
+        }
+        Object value = Array.get(elements, from);
+        if (kind == Kind.MAP) {
+            Map.Entry entry = (Map.Entry) value;
+            Class klass = entry.getValue() == null ? Object.class : entry.getValue().getClass();
+            TypeModel valueType = lookup.lookup(klass);
+            return new VariableModel(String.valueOf(entry.getKey()),
+                    new MapEntryModel(valueType), entry, index);
+        }
+        Class klass = value == null ? elements.getClass().getComponentType() : value.getClass();
+        String name = kind == Kind.ARRAY ? "" + from : "[" + from + "]";
+        return new VariableModel(name, lookup.lookup(klass), value, index);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + ".." + (end - 1) + "]";
+    }
+}
+
+class SliceModel implements TypeModel<Slice> {
+    static final SliceModel INSTANCE = new SliceModel();
+
+    @Override
+    public String toString() {
+        return "range";
+    }
+
+    @Override
+    public boolean isLeaf(Slice value) {
+        return false;
+    }
+
+    @Override
+    public VariableModel getChild(TypeModelLookup lookup, Slice parent, int index) {
+        return parent.row(lookup, index);
+    }
+
+    @Override
+    public int getChildCount(TypeModelLookup lookup, Slice parent) {
+        return Slice.rows(parent.size());
+    }
+}
+
+/**
+ * The type model of every class, made the first time the class is shown
+ * and shared after that.
+ */
+final class TypeModels {
+    private static final ClassValue<TypeModel<?>> MODELS = new ClassValue<TypeModel<?>>() {
+        @Override
+        protected TypeModel<?> computeValue(Class<?> klass) {
+            if (klass.isArray()) {
+                return new ArrayModel<>(klass);
+            } else if (Collection.class.isAssignableFrom(klass)) {
+                return new CollectionModel(klass);
+            } else if (Map.class.isAssignableFrom(klass)) {
+                return new MapModel(klass);
+            } else if (Node.class.isAssignableFrom(klass)) {
+                return new NodeTypeModel(klass, classModel(klass).getParentType());
+            }
+            return classModel(klass);
+        }
+    };
+
+    // The fields of each class, without the extra rows that the models of
+    // nodes add. These are the parents of the models of subclasses.
+    private static final ClassValue<ClassModel<?>> CLASS_MODELS = new ClassValue<ClassModel<?>>() {
+        @Override
+        protected ClassModel<?> computeValue(Class<?> klass) {
+            Class<?> parent = klass.getSuperclass();
+            return new ClassModel(klass, parent == null ? null : classModel(parent));
+        }
+    };
+
+    private TypeModels() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> TypeModel<T> lookup(Class<T> klass) {
+        return (TypeModel<T>) MODELS.get(klass);
+    }
+
+    private static ClassModel<?> classModel(Class<?> klass) {
+        return CLASS_MODELS.get(klass);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The rows of the variables tree as they were at a stop.
+ *
+ * Capturing walks the rows breadth first, so the shallow rows are taken
+ * before the deep ones, and stops at maxDepth, after maxRows rows or when
+ * the time is up. Each row taken keeps the text shown for its value and
+ * the list of its children, so the tree shows them as they were even if
+ * the objects change. Rows past the limits are read live.
+ *
+ * Rows are matched between stops by the names and positions on their path.
+ * A row is changed if its text differs from the last capture, or if it is
+ * new under a row whose children were taken last time. Live variables, like
+ * the selection, aren't captured or compared.
+ */
+final class ValueSnapshot {
+
+    static final int DEFAULT_DEPTH = 4;
+    static final int DEFAULT_MAX_ROWS = 10000;
+    static final long DEFAULT_BUDGET_MILLIS = 200;
+
+    // The variables the capture started from.
+    private final List<VariableModel> rows;
+    // The text of each row taken, by path.
+    private final Map<String, String> texts = new HashMap<>();
+    // The paths of the rows whose children were taken.
+    private final Set<String> expanded = new HashSet<>();
+    private int changes = 0;
+    private boolean complete = true;
+
+    private ValueSnapshot(List<VariableModel> rows) {
+        this.rows = Collections.unmodifiableList(new ArrayList<>(rows));
+    }
+
+    /**
+     * Captures rows and the rows under them, and marks the rows that changed
+     * since previous, which may be null.
+     */
+    static ValueSnapshot capture(VariableTreeModel tree, List<VariableModel> rows,
+            ValueSnapshot previous, int maxDepth, int maxRows, long budgetMillis) {
+        ValueSnapshot snapshot = new ValueSnapshot(rows);
+        long deadline = System.nanoTime() + budgetMillis * 1000000L;
+        VariableRowModel rowModel = new VariableRowModel();
+        Deque<VariableModel> pending = new ArrayDeque<>();
+        Deque<String> paths = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        for (int i = 0; i < rows.size(); ++i) {
+            VariableModel row = rows.get(i);
+            String path = snapshot.take(row, "", i, previous, rowModel);
+            pending.add(row);
+            paths.add(path);
+            depths.add(1);
+        }
+        snapshot.expanded.add("");
+        int taken = rows.size();
+        while (!pending.isEmpty()) {
+            VariableModel row = pending.poll();
+            String path = paths.poll();
+            int depth = depths.poll();
+            if (depth >= maxDepth || tree.isLeaf(row)) {
+                continue;
+            }
+            if (taken >= maxRows || System.nanoTime() > deadline) {
+                snapshot.complete = false;
+                break;
+            }
+            int count = tree.getChildCount(row);
+            List<VariableModel> children = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                VariableModel child = (VariableModel) tree.getChild(row, i);
+                String childPath = snapshot.take(child, path, i, previous, rowModel);
+                children.add(child);
+                pending.add(child);
+                paths.add(childPath);
+                depths.add(depth + 1);
+            }
+            taken += count;
+            row.captureChildren(Collections.unmodifiableList(children));
+            snapshot.expanded.add(path);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Keeps the text of row, the index-th child of the row at parentPath,
+     * and returns its path.
+     */
+    private String take(VariableModel row, String parentPath, int index,
+            ValueSnapshot previous, VariableRowModel rowModel) {
+        String path = parentPath + "/" + index + ":" + row.getName();
+        String text = String.valueOf(rowModel.getValueFor(row, 1));
+        row.capture(text, isChanged(previous, parentPath, path, text));
+        if (row.isChanged()) {
+            ++changes;
+        }
+        texts.put(path, text);
+        return path;
+    }
+
+    /**
+     * Returns whether the capture started from the same variables, with the
+     * same names and values.
+     */
+    boolean matches(List<VariableModel> variables) {
+        if (variables.size() != rows.size()) {
+            return false;
+        }
+        for (int i = 0; i < rows.size(); ++i) {
+            VariableModel a = rows.get(i);
+            VariableModel b = variables.get(i);
+            if (!a.getName().equals(b.getName()) || a.getValue() != b.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the captured variables, to show again.
+     */
+    List<VariableModel> getRows() {
+        return rows;
+    }
+
+    private boolean isChanged(ValueSnapshot previous, String parentPath, String path, String text) {
+        if (previous == null) {
+            return false;
+        }
+        String old = previous.texts.get(path);
+        if (old == null) {
+            return previous.expanded.contains(parentPath);
+        }
+        return !old.equals(text);
+    }
+
+    /**
+     * Returns the number of rows marked changed.
+     */
+    int getChanges() {
+        return changes;
+    }
+
+    int size() {
+        return texts.size();
+    }
+
+    /**
+     * Returns whether every row within the depth was taken.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+}
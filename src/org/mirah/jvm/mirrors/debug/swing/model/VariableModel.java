@@ -16,6 +16,8 @@
  
 package org.mirah.jvm.mirrors.debug.swing.model;
 
+import java.util.List;
+
 public class VariableModel {
    VariableModel(String name, TypeModel<?> type, Object value, int index) {
         this.name = name;
@@ -44,8 +46,54 @@ public class VariableModel {
         return type;
     }
 
+    /**
+     * Returns whether the value shown differs from the last stop.
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Returns the text captured for the value at the stop, or null if the
+     * row wasn't captured.
+     */
+    String getCapturedText() {
+        return capturedText;
+    }
+
+    /**
+     * Returns the children captured at the stop, or null.
+     */
+    List<VariableModel> getCapturedChildren() {
+        return capturedChildren;
+    }
+
+    /**
+     * Returns whether the row is left out of snapshots and always read live.
+     */
+    boolean isLive() {
+        return live;
+    }
+
+    void setLive(boolean live) {
+        this.live = live;
+    }
+
+    void capture(String text, boolean changed) {
+        this.capturedText = text;
+        this.changed = changed;
+    }
+
+    void captureChildren(List<VariableModel> children) {
+        this.capturedChildren = children;
+    }
+
     private final String name;
     private final TypeModel type;
     private final Object value;
     private int index;
+    private String capturedText;
+    private List<VariableModel> capturedChildren;
+    private boolean changed;
+    private boolean live;
 }
@@ -21,6 +21,7 @@ import javax.swing.Icon;
 import org.netbeans.swing.outline.RenderDataProvider;
 
 public class VariableRenderData implements RenderDataProvider {
+    private static final Color CHANGED = new Color(0xC0, 0x30, 0x20);
 
     @Override
     public String getDisplayName(Object o) {
@@ -39,7 +40,8 @@ public class VariableRenderData implements RenderDataProvider {
 
     @Override
     public Color getForeground(Object o) {
-        return null;
+        // Values that changed since the last stop.
+        return ((VariableModel)o).isChanged() ? CHANGED : null;
     }
 
     @Override
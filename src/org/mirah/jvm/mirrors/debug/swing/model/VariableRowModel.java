@@ -18,6 +18,7 @@ package org.mirah.jvm.mirrors.debug.swing.model;
 
 import java.lang.reflect.Array;
 import java.util.Collection;
+import java.util.Map;
 import org.netbeans.swing.outline.RowModel;
 
 public class VariableRowModel implements RowModel {
@@ -32,14 +33,29 @@ public class VariableRowModel implements RowModel {
         VariableModel v = (VariableModel)o;
         if (i == 0) {
             return v.getType();
-        } else if (v.getType().isLeaf(v.getValue())) {
-            return "" + v.getValue();
-        } else if (v.getValue() instanceof Collection) {
-            return "size: " + ((Collection)v.getValue()).size();
-        } else if (v.getType() instanceof ArrayModel) {
-            return "length: " + Array.getLength(v.getValue());
+        } else if (v.getCapturedText() != null) {
+            return v.getCapturedText();
+        } else if (v.getType() instanceof MapEntryModel) {
+            // Map entries show their value.
+            return describe(((MapEntryModel)v.getType()).getValueType(),
+                    ((Map.Entry)v.getValue()).getValue());
+        }
+        return describe(v.getType(), v.getValue());
+    }
+
+    private static String describe(TypeModel type, Object value) {
+        if (type.isLeaf(value)) {
+            return "" + value;
+        } else if (value instanceof Collection) {
+            return "size: " + ((Collection)value).size();
+        } else if (value instanceof Map) {
+            return "size: " + ((Map)value).size();
+        } else if (value instanceof Slice) {
+            return "size: " + ((Slice)value).size();
+        } else if (type instanceof ArrayModel) {
+            return "length: " + Array.getLength(value);
         } else {
-            return "#" + System.identityHashCode(v.getValue());
+            return "#" + System.identityHashCode(value);
         }
     }
 
@@ -16,6 +16,8 @@
  
 package org.mirah.jvm.mirrors.debug.swing.model;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -25,7 +27,6 @@ import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
 import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
-import mirah.lang.ast.Node;
 import org.mirah.typer.Typer;
 
 class VariableTreeModel implements TreeModel, TypeModelLookup {
@@ -37,12 +38,87 @@ class VariableTreeModel implements TreeModel, TypeModelLookup {
 
     public void clear() {
         vars.clear();
+        snapshots.clear();
+    }
+
+    /**
+     * Turns on capturing the rows at each stop, taking rows up to depth
+     * levels below the variables. A depth of 0 turns it off.
+     */
+    public void setSnapshotDepth(int depth) {
+        this.snapshotDepth = depth;
+        thisStop.clear();
+        if (depth == 0) {
+            lastStop.clear();
+        }
+    }
+
+    public int getSnapshotDepth() {
+        return snapshotDepth;
+    }
+
+    /**
+     * Starts a new stop. The captures of the one before are kept to compare
+     * against.
+     */
+    void nextStop() {
+        if (!thisStop.isEmpty()) {
+            lastStop.clear();
+            lastStop.putAll(thisStop);
+            thisStop.clear();
+        }
+    }
+
+    /**
+     * Captures the variables added since clear(), other than the live ones,
+     * if snapshots are on. Captures with the same scope, like the position
+     * of a frame on the stack, are compared between stops. The capture of
+     * a scope is taken once per stop; later calls show the same rows again
+     * if the variables are the same.
+     */
+    ValueSnapshot capture(Object scope) {
+        if (snapshotDepth == 0) {
+            return null;
+        }
+        List<VariableModel> rows = new ArrayList<>();
+        for (VariableModel row : vars) {
+            if (!row.isLive()) {
+                rows.add(row);
+            }
+        }
+        ValueSnapshot snapshot = thisStop.get(scope);
+        if (snapshot != null && snapshot.matches(rows)) {
+            List<VariableModel> captured = snapshot.getRows();
+            int next = 0;
+            for (int i = 0; i < vars.size(); ++i) {
+                if (!vars.get(i).isLive()) {
+                    VariableModel row = captured.get(next++);
+                    row.setIndex(i);
+                    vars.set(i, row);
+                }
+            }
+            return snapshot;
+        }
+        snapshot = ValueSnapshot.capture(
+                this, rows, lastStop.get(scope), snapshotDepth,
+                ValueSnapshot.DEFAULT_MAX_ROWS, ValueSnapshot.DEFAULT_BUDGET_MILLIS);
+        thisStop.put(scope, snapshot);
+        return snapshot;
     }
     
     public void addVariable(String name, Object value) {
         vars.add(new VariableModel(
                 name, lookup(value.getClass()), value, vars.size()));
     }
+
+    /**
+     * Adds a variable that snapshots leave out, so it is always read live
+     * and never marked changed.
+     */
+    public void addLiveVariable(String name, Object value) {
+        addVariable(name, value);
+        vars.get(vars.size() - 1).setLive(true);
+    }
     
     @Override
     public Object getRoot() {
@@ -51,12 +127,20 @@ class VariableTreeModel implements TreeModel, TypeModelLookup {
 
     @Override
     public Object getChild(Object parent, int index) {
-        return getType(parent).getChild(((VariableModel)parent).getValue(), index);
+        List<VariableModel> captured = ((VariableModel)parent).getCapturedChildren();
+        if (captured != null) {
+            return captured.get(index);
+        }
+        return getType(parent).getChild(this, ((VariableModel)parent).getValue(), index);
     }
 
     @Override
     public int getChildCount(Object parent) {
-        return getType(parent).getChildCount(((VariableModel)parent).getValue());
+        List<VariableModel> captured = ((VariableModel)parent).getCapturedChildren();
+        if (captured != null) {
+            return captured.size();
+        }
+        return getType(parent).getChildCount(this, ((VariableModel)parent).getValue());
     }
 
     @Override
@@ -96,46 +180,48 @@ class VariableTreeModel implements TreeModel, TypeModelLookup {
 
     @Override
     public <T> TypeModel<T> lookup(Class<T> klass) {
-        if (typeCache.containsKey(klass)) {
-            return typeCache.get(klass);
-        }
-        TypeModel<T> model;
-        if (klass.isArray()) {
-            model = new ArrayModel<>(klass, this);
-        } else {
-            try {
-                klass.asSubclass(Collection.class);
-                model = new CollectionModel(klass, this);
-            } catch (ClassCastException ex) {
-                model = lookupByClass(klass);
-                try {
-                    klass.asSubclass(Node.class);
-                    model = new NodeTypeModel(klass, ((ClassModel)model).getParentType(), this, typer);
-                } catch (ClassCastException ex2) {
-                }
-            }
-        }
-        typeCache.put(klass, model);
-        return model;
+        return TypeModels.lookup(klass);
     }
-    
-    private <T> ClassModel<T> lookupByClass(Class<T> klass) {
-        if (klass == null) {
-            return null;
+
+    @Override
+    public Typer getTyper() {
+        return typer;
+    }
+
+    @Override
+    public Object[] snapshot(Collection<?> collection) {
+        Object[] elements = snapshots.get(collection);
+        if (elements == null) {
+            elements = snapshots.putIfAbsent(collection, collection.toArray());
         }
-        if (classCache.containsKey(klass)) {
-            return classCache.get(klass);
+        return elements;
+    }
+
+    @Override
+    public Map.Entry<?, ?>[] snapshot(Map<?, ?> map) {
+        Object[] entries = snapshots.get(map);
+        if (entries == null) {
+            List<Map.Entry<?, ?>> copies = new ArrayList<>(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                copies.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+            }
+            entries = snapshots.putIfAbsent(map, copies.toArray(new Map.Entry<?, ?>[copies.size()]));
         }
-        ClassModel model = new ClassModel(
-                klass, lookupByClass(klass.getSuperclass()), this);
-        classCache.put(klass, model);
-        return model;           
+        return (Map.Entry<?, ?>[]) entries;
     }
 
-    final List<VariableModel> vars = new LinkedList<>();
+    final List<VariableModel> vars = new ArrayList<>();
     final VariableModel root =
             new VariableModel("root", new RootTypeModel(), vars, 0);
     final List<TreeModelListener> listeners = new LinkedList<>();
-    final Map<Class, ClassModel> classCache = new HashMap<>();
-    final Map<Class, TypeModel> typeCache = new HashMap<>();
+    // The collections and maps expanded since the last clear(), copied so
+    // that each row is found by index and stays the same while the tree is
+    // shown.
+    final WeakIdentityCache<Object, Object[]> snapshots =
+            new WeakIdentityCache<>(MAX_SNAPSHOTS);
+    private static final int MAX_SNAPSHOTS = 256;
+    // The rows captured at the last stop and this one, by scope.
+    private final Map<Object, ValueSnapshot> lastStop = new HashMap<>();
+    private final Map<Object, ValueSnapshot> thisStop = new HashMap<>();
+    private int snapshotDepth = 0;
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2014 The Mirah project authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cache keyed by identity that can be read and filled from any thread
+ * without locking.
+ *
+ * Keys are held weakly. Values are held softly, since a value that refers
+ * back to its key, like the children of a node do through their parent,
+ * would otherwise keep the key alive forever. At most maxSize entries are
+ * kept; the oldest are dropped first.
+ */
+final class WeakIdentityCache<K, V> {
+
+    private final int maxSize;
+    private final ConcurrentMap<Key<K>, Entry<K, V>> map = new ConcurrentHashMap<>();
+    // Entries in the order they were added. Entries that were removed or
+    // replaced since stay here until they are evicted or purged.
+    private final Queue<Entry<K, V>> order = new ConcurrentLinkedQueue<>();
+    // The number of entries in map, and in order.
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ReferenceQueue<K> cleared = new ReferenceQueue<>();
+
+    WeakIdentityCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the value for key, or null if there isn't one.
+     */
+    V get(K key) {
+        expunge();
+        Entry<K, V> entry = map.get(new Key<>(key, null));
+        return entry == null ? null : entry.get();
+    }
+
+    /**
+     * Stores value for key, unless another thread got there first, and
+     * returns the value that is in the cache.
+     */
+    V putIfAbsent(K key, V value) {
+        expunge();
+        Key<K> k = new Key<>(key, cleared);
+        Entry<K, V> entry = new Entry<>(k, value);
+        while (true) {
+            Entry<K, V> old = map.putIfAbsent(k, entry);
+            if (old == null) {
+                count.incrementAndGet();
+                added(entry);
+                return value;
+            }
+            V existing = old.get();
+            if (existing != null) {
+                return existing;
+            }
+            // The map keeps its own key, so the new entry must refer to it.
+            Entry<K, V> renewed = new Entry<>(old.key, value);
+            if (map.replace(old.key, old, renewed)) {
+                added(renewed);
+                return value;
+            }
+        }
+    }
+
+    void remove(K key) {
+        if (map.remove(new Key<>(key, null)) != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    void clear() {
+        map.clear();
+        order.clear();
+        count.set(0);
+        queued.set(0);
+    }
+
+    int size() {
+        expunge();
+        return map.size();
+    }
+
+    private void added(Entry<K, V> entry) {
+        order.add(entry);
+        queued.incrementAndGet();
+        evict();
+    }
+
+    /**
+     * Removes the oldest entries while there are more than maxSize, and
+     * drops the removed entries from order once they make up half of it.
+     */
+    private void evict() {
+        while (count.get() > maxSize) {
+            Entry<K, V> eldest = order.poll();
+            if (eldest == null) {
+                return;
+            }
+            queued.decrementAndGet();
+            // Only this exact entry; the key may have been added again.
+            if (map.remove(eldest.key, eldest)) {
+                count.decrementAndGet();
+            }
+        }
+        if (queued.get() > 2 * maxSize) {
+            for (Entry<K, V> entry : order) {
+                if (map.get(entry.key) != entry && order.remove(entry)) {
+                    queued.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void expunge() {
+        Object ref;
+        while ((ref = cleared.poll()) != null) {
+            Key<?> key = (Key<?>) ref;
+            Entry<K, V> entry = map.get(key);
+            if (entry != null && entry.key == key && map.remove(key, entry)) {
+                count.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class Entry<K, V> extends SoftReference<V> {
+        final Key<K> key;
+
+        Entry(Key<K> key, V value) {
+            super(value);
+            this.key = key;
+        }
+    }
+
+    private static final class Key<K> extends WeakReference<K> {
+        private final int hash;
+
+        Key(K referent, ReferenceQueue<K> queue) {
+            super(referent, queue);
+            hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((Key<?>) o).get();
+        }
+    }
+}
@@ -16,11 +16,13 @@
  
 package org.mirah.jvm.mirrors.debug.swing.view;
 
+import java.awt.Point;
 import java.awt.event.MouseEvent;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.tree.TreePath;
 import mirah.lang.ast.Node;
 import mirah.lang.ast.Position;
@@ -33,9 +35,11 @@ import org.mirah.jvm.mirrors.debug.swing.model.VariableRenderData;
 import org.mirah.typer.BaseTypeFuture;
 import org.mirah.typer.TypeFuture;
 import org.netbeans.swing.outline.Outline;
+import org.netbeans.swing.outline.OutlineModel;
 
 public class DebuggerFrame extends javax.swing.JFrame {
     private DebugController debugger;
+    private boolean followingCaret = false;
     
     public DebuggerFrame(DebugController debugger) {
         this.debugger = debugger;
@@ -86,6 +90,9 @@ public class DebuggerFrame extends javax.swing.JFrame {
         jButton2 = new javax.swing.JButton();
         jButton4 = new javax.swing.JButton();
         jButton5 = new javax.swing.JButton();
+        typesButton = new javax.swing.JToggleButton();
+        implicitButton = new javax.swing.JToggleButton();
+        snapshotButton = new javax.swing.JToggleButton();
         menuBar = new javax.swing.JMenuBar();
         fileMenu = new javax.swing.JMenu();
         exitMenuItem = new javax.swing.JMenuItem();
@@ -179,10 +186,16 @@ public class DebuggerFrame extends javax.swing.JFrame {
 
         sourcePane.addTab("AST", jScrollPane3);
 
+        jScrollPane7.addComponentListener(new java.awt.event.ComponentAdapter() {
+            public void componentResized(java.awt.event.ComponentEvent evt) {
+                jScrollPane7ComponentResized(evt);
+            }
+        });
+
         jTextPane1.setContentType("text/html"); // NOI18N
         jTextPane1.setFont(new java.awt.Font("Monospaced", 0, 13)); // NOI18N
 
-        binding = org.jdesktop.beansbinding.Bindings.createAutoBinding(org.jdesktop.beansbinding.AutoBinding.UpdateStrategy.READ, debuggerModel1, org.jdesktop.beansbinding.ELProperty.create("${selectedScript.generatedCode}"), jTextPane1, org.jdesktop.beansbinding.BeanProperty.create("text_ON_ACTION_OR_FOCUS_LOST"));
+        binding = org.jdesktop.beansbinding.Bindings.createAutoBinding(org.jdesktop.beansbinding.AutoBinding.UpdateStrategy.READ, debuggerModel1, org.jdesktop.beansbinding.ELProperty.create("${generatedCode}"), jTextPane1, org.jdesktop.beansbinding.BeanProperty.create("text_ON_ACTION_OR_FOCUS_LOST"));
         bindingGroup.addBinding(binding);
 
         jScrollPane7.setViewportView(jTextPane1);
@@ -198,6 +211,11 @@ public class DebuggerFrame extends javax.swing.JFrame {
         binding = org.jdesktop.beansbinding.Bindings.createAutoBinding(org.jdesktop.beansbinding.AutoBinding.UpdateStrategy.READ_WRITE, debuggerModel1, org.jdesktop.beansbinding.ELProperty.create("${selectedNode.startChar}"), codeTextPane, org.jdesktop.beansbinding.BeanProperty.create("selectionStart"));
         bindingGroup.addBinding(binding);
 
+        codeTextPane.addCaretListener(new javax.swing.event.CaretListener() {
+            public void caretUpdate(javax.swing.event.CaretEvent evt) {
+                codeTextPaneCaretUpdate(evt);
+            }
+        });
         jScrollPane4.setViewportView(codeTextPane);
 
         sourcePane.addTab("Original", jScrollPane4);
@@ -350,6 +368,33 @@ public class DebuggerFrame extends javax.swing.JFrame {
         });
         jToolBar1.add(jButton5);
 
+        typesButton.setText("Types");
+        typesButton.setToolTipText("Show inferred types in the generated code");
+        typesButton.setFocusable(false);
+
+        binding = org.jdesktop.beansbinding.Bindings.createAutoBinding(org.jdesktop.beansbinding.AutoBinding.UpdateStrategy.READ_WRITE, debuggerModel1, org.jdesktop.beansbinding.ELProperty.create("${showTypes}"), typesButton, org.jdesktop.beansbinding.BeanProperty.create("selected"));
+        bindingGroup.addBinding(binding);
+
+        jToolBar1.add(typesButton);
+
+        implicitButton.setText("Implicit");
+        implicitButton.setToolTipText("Show the nodes the parser adds where the source has nothing");
+        implicitButton.setFocusable(false);
+
+        binding = org.jdesktop.beansbinding.Bindings.createAutoBinding(org.jdesktop.beansbinding.AutoBinding.UpdateStrategy.READ_WRITE, debuggerModel1, org.jdesktop.beansbinding.ELProperty.create("${showImplicitNodes}"), implicitButton, org.jdesktop.beansbinding.BeanProperty.create("selected"));
+        bindingGroup.addBinding(binding);
+
+        jToolBar1.add(implicitButton);
+
+        snapshotButton.setText("Snapshot");
+        snapshotButton.setToolTipText("Freeze the variables at each stop and highlight what changed since the last one");
+        snapshotButton.setFocusable(false);
+
+        binding = org.jdesktop.beansbinding.Bindings.createAutoBinding(org.jdesktop.beansbinding.AutoBinding.UpdateStrategy.READ_WRITE, debuggerModel1, org.jdesktop.beansbinding.ELProperty.create("${snapshots}"), snapshotButton, org.jdesktop.beansbinding.BeanProperty.create("selected"));
+        bindingGroup.addBinding(binding);
+
+        jToolBar1.add(snapshotButton);
+
         fileMenu.setMnemonic('f');
         fileMenu.setText("File");
 
@@ -416,6 +461,7 @@ public class DebuggerFrame extends javax.swing.JFrame {
     }//GEN-LAST:event_exitMenuItemActionPerformed
 
     private void continueMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_continueMenuItemActionPerformed
+        debuggerModel1.stopGeneratingCode();
         debugger.continueExecution();
         debuggerModel1.setRunning(true);
     }//GEN-LAST:event_continueMenuItemActionPerformed
@@ -423,29 +469,69 @@ public class DebuggerFrame extends javax.swing.JFrame {
     private void debuggerModel1PropertyChange(java.beans.PropertyChangeEvent evt) {//GEN-FIRST:event_debuggerModel1PropertyChange
         if (evt.getPropertyName().equals("selectedNodePath") && evt.getNewValue() != null) {
             astOutline.expandPath((TreePath) evt.getNewValue());
+        } else if (evt.getPropertyName().equals("ast")) {
+            // The viewport only moves when the new outline is laid out, so
+            // it is still where the old one was scrolled to.
+            debuggerModel1.setViewPosition((OutlineModel) evt.getOldValue(),
+                    jScrollPane3.getViewport().getViewPosition());
+            final Point position = debuggerModel1.getViewPosition();
+            if (position != null) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        jScrollPane3.getViewport().setViewPosition(position);
+                    }
+                });
+            }
         }
     }//GEN-LAST:event_debuggerModel1PropertyChange
 
+    private void jScrollPane7ComponentResized(java.awt.event.ComponentEvent evt) {//GEN-FIRST:event_jScrollPane7ComponentResized
+        // Wrap the generated code to the columns that fit in the view.
+        java.awt.FontMetrics metrics = jTextPane1.getFontMetrics(jTextPane1.getFont());
+        int columns = jScrollPane7.getViewport().getExtentSize().width / metrics.charWidth('m');
+        debuggerModel1.setCodeWidth(Math.max(columns - 1, 20));
+    }//GEN-LAST:event_jScrollPane7ComponentResized
+
+    private void codeTextPaneCaretUpdate(javax.swing.event.CaretEvent evt) {//GEN-FIRST:event_codeTextPaneCaretUpdate
+        // Follow the caret when the user moves it. Selecting a node selects
+        // its source, which moves the caret again, so ignore that.
+        if (followingCaret || evt.getDot() != evt.getMark() || !codeTextPane.isFocusOwner()) {
+            return;
+        }
+        followingCaret = true;
+        try {
+            debuggerModel1.selectSourceOffset(evt.getDot());
+        } finally {
+            followingCaret = false;
+        }
+    }//GEN-LAST:event_codeTextPaneCaretUpdate
+
     private void jButton1ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton1ActionPerformed
+        debuggerModel1.stopGeneratingCode();
         debugger.continueExecution();
         debuggerModel1.setRunning(true);
     }//GEN-LAST:event_jButton1ActionPerformed
 
     private void jButton3ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton3ActionPerformed
+        debuggerModel1.stopGeneratingCode();
         debugger.step();
     }//GEN-LAST:event_jButton3ActionPerformed
 
     private void jButton2ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton2ActionPerformed
+        debuggerModel1.stopGeneratingCode();
         debugger.step();
         debuggerModel1.setRunning(true);
     }//GEN-LAST:event_jButton2ActionPerformed
 
     private void jButton4ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton4ActionPerformed
+        debuggerModel1.stopGeneratingCode();
         debugger.next();
         debuggerModel1.setRunning(true);
     }//GEN-LAST:event_jButton4ActionPerformed
 
     private void jButton5ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton5ActionPerformed
+        debuggerModel1.stopGeneratingCode();
         debugger.finishNode();
         debuggerModel1.setRunning(true);
     }//GEN-LAST:event_jButton5ActionPerformed
@@ -629,6 +715,7 @@ public class DebuggerFrame extends javax.swing.JFrame {
     private javax.swing.JMenu fileMenu;
     private javax.swing.Box.Filler filler1;
     private javax.swing.JMenu helpMenu;
+    private javax.swing.JToggleButton implicitButton;
     private javax.swing.JButton jButton1;
     private javax.swing.JButton jButton2;
     private javax.swing.JButton jButton3;
@@ -655,6 +742,8 @@ public class DebuggerFrame extends javax.swing.JFrame {
     private org.mirah.jvm.mirrors.debug.swing.model.NodeConverter nodeConverter1;
     private javax.swing.JTextPane outputTextPane;
     private javax.swing.JTabbedPane sourcePane;
+    private javax.swing.JToggleButton snapshotButton;
+    private javax.swing.JToggleButton typesButton;
     private org.netbeans.swing.outline.Outline varsOutline;
     private javax.swing.JMenuItem watchAllItem;
     private javax.swing.JMenuItem watchItem;
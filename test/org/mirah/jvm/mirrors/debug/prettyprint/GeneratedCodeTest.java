@@ -0,0 +1,126 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import mirah.impl.MirahParser;
+import mirah.lang.ast.FunctionalCall;
+import mirah.lang.ast.MethodDefinition;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.Script;
+import mirah.lang.ast.StringCodeSource;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GeneratedCodeTest {
+
+    private Script script;
+    private GeneratedCode code;
+
+    public GeneratedCodeTest() {
+    }
+
+    @Before
+    public void setUp() {
+        script = parse("def foo(a:int)\n  puts a + 1\nend\n"
+                       + "def bar\n  baz 1, 2\nend\n");
+        code = new GeneratedCode(script, 30);
+        code.getText();
+    }
+
+    @Test
+    public void testUpdateMethod() {
+        MethodDefinition foo = (MethodDefinition) script.body().get(0);
+        FunctionalCall puts = (FunctionalCall) foo.body().get(0);
+        Node sum = puts.parameters(0);
+        code.nodeChanged(sum);
+        puts.parameters().replaceChild(sum, expression("a + 1 + 'a much longer string'"));
+        assertEquals(Collections.<Node>singletonList(foo), code.update());
+        check();
+    }
+
+    @Test
+    public void testUpdateScript() {
+        Node bar = script.body().get(1);
+        code.nodeChanged(bar);
+        script.body().replaceChild(bar, expression("x = 1"));
+        assertEquals(Collections.<Node>singletonList(script), code.update());
+        check();
+    }
+
+    @Test
+    public void testInterruptedUpdate() {
+        MethodDefinition foo = (MethodDefinition) script.body().get(0);
+        Node puts = foo.body().get(0);
+        code.nodeChanged(puts);
+        foo.body().replaceChild(puts, expression("x = 1"));
+        Thread.currentThread().interrupt();
+        try {
+            code.update();
+            fail("The update should have been cancelled");
+        } catch (CancellationException ex) {
+            // Expected.
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(Collections.<Node>singletonList(foo), code.update());
+        check();
+    }
+
+    @Test
+    public void testUpdateBeforePrinting() {
+        code = new GeneratedCode(script, 30);
+        MethodDefinition foo = (MethodDefinition) script.body().get(0);
+        Node puts = foo.body().get(0);
+        code.nodeChanged(puts);
+        foo.body().replaceChild(puts, expression("x = 1"));
+        assertEquals(Collections.<Node>singletonList(foo), code.update());
+        check();
+    }
+
+    @Test
+    public void testUpdateAfterOtherWidth() {
+        code = new GeneratedCode(script, 30);
+        code.getText(50);
+        MethodDefinition foo = (MethodDefinition) script.body().get(0);
+        Node puts = foo.body().get(0);
+        code.nodeChanged(puts);
+        foo.body().replaceChild(puts, expression("x = 1"));
+        assertEquals(Collections.<Node>singletonList(foo), code.update());
+        check();
+        MirahSourceGenerator generator = new MirahSourceGenerator();
+        generator.setLimit(50);
+        script.accept(generator, null);
+        assertEquals(generator.toString(), code.getText(50));
+    }
+
+    @Test
+    public void testNothingChanged() {
+        assertTrue(code.update().isEmpty());
+        check();
+    }
+
+    private void check() {
+        MirahSourceGenerator generator = new MirahSourceGenerator();
+        generator.setLimit(30);
+        script.accept(generator, null);
+        assertEquals(generator.toString(), code.getText());
+        SourceMap map = generator.getSourceMap();
+        Node bar = script.body().get(1);
+        assertEquals(map.getStart(bar), code.getSourceMap().getStart(bar));
+        assertEquals(map.getEnd(bar), code.getSourceMap().getEnd(bar));
+    }
+
+    private static Script parse(String source) {
+        return (Script) new MirahParser().parse(new StringCodeSource("test.mirah", source));
+    }
+
+    private static Node expression(String source) {
+        return (Node) parse(source).body().get(0).clone();
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import org.junit.Before;
+
+/**
+ * Runs the TokenPrinter cases against the linear layout engine.
+ */
+public class LinearTokenPrinterTest extends TokenPrinterTest {
+
+    public LinearTokenPrinterTest() {
+    }
+
+    @Before
+    @Override
+    public void setUp() {
+        super.setUp();
+        setLayout(TokenPrinter.Layout.LINEAR);
+    }
+}
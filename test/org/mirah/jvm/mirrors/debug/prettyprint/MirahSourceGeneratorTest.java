@@ -0,0 +1,122 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.io.IOException;
+import mirah.impl.MirahParser;
+import mirah.lang.ast.Call;
+import mirah.lang.ast.Fixnum;
+import mirah.lang.ast.FunctionalCall;
+import mirah.lang.ast.MethodDefinition;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.NodeList;
+import mirah.lang.ast.Not;
+import mirah.lang.ast.StringCodeSource;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MirahSourceGeneratorTest {
+
+    public MirahSourceGeneratorTest() {
+    }
+
+    @Test
+    public void testTraversalsMatch() {
+        Node script = (Node) new MirahParser().parse(new StringCodeSource("test.mirah",
+                "class Foo < Bar\n"
+                + "  def foo(a:int, b = 2)\n"
+                + "    if a > 1 && (b < 2 || a == b) && !c\n"
+                + "      puts \"#{a} and #{b}\", [1, 2, 3].map { |x| x * 2 }\n"
+                + "    end\n"
+                + "  end\n"
+                + "end\n"));
+        assertEquals(generate(script, MirahSourceGenerator.Traversal.RECURSIVE),
+                     generate(script, MirahSourceGenerator.Traversal.ITERATIVE));
+    }
+
+    @Test
+    public void testDeepNesting() {
+        Node node = new Fixnum(1);
+        for (int i = 0; i < 50000; ++i) {
+            NodeList body = new NodeList();
+            body.add(node);
+            node = new Not(body);
+        }
+        String code = generate(node, MirahSourceGenerator.Traversal.ITERATIVE);
+        assertTrue(code.startsWith("!!!"));
+        assertTrue(code.endsWith("!1"));
+    }
+
+    @Test
+    public void testStreamingMarksNoNodes() throws IOException {
+        Node script = (Node) new MirahParser().parse(new StringCodeSource("test.mirah",
+                "def foo(a:int)\n  puts a + 1\nend\n"));
+        StringBuilder written = new StringBuilder();
+        MirahSourceGenerator streaming = new MirahSourceGenerator(written);
+        streaming.setRenderer(Renderer.PLAIN);
+        script.accept(streaming, null);
+        streaming.finish();
+        assertEquals(generate(script, MirahSourceGenerator.Traversal.ITERATIVE), written.toString());
+        assertEquals(0, streaming.getSourceMap().size());
+    }
+
+    @Test
+    public void testDeepInferredTypes() {
+        Node node = new Fixnum(1);
+        for (int i = 0; i < 50000; ++i) {
+            NodeList body = new NodeList();
+            body.add(node);
+            node = new Not(body);
+        }
+        final int[] lookups = new int[1];
+        InferredTypes types = new InferredTypes(null) {
+            @Override
+            protected String lookup(Node node) {
+                ++lookups[0];
+                return null;
+            }
+        };
+        types.lookupAll(node);
+        assertEquals(100001, lookups[0]);
+    }
+
+    @Test
+    public void testInferredTypes() {
+        Node script = (Node) new MirahParser().parse(new StringCodeSource("test.mirah",
+                "def foo(a:int)\n  puts a + 1\nend\n"));
+        final int[] lookups = new int[1];
+        InferredTypes types = new InferredTypes(null) {
+            @Override
+            protected String lookup(Node node) {
+                ++lookups[0];
+                if (node instanceof MethodDefinition || node instanceof FunctionalCall) {
+                    return "void";
+                }
+                return node instanceof Call ? "int" : null;
+            }
+        };
+        types.lookupAll(script);
+        int nodes = lookups[0];
+        String code = generate(script, MirahSourceGenerator.Traversal.RECURSIVE, types);
+        assertEquals(code, generate(script, MirahSourceGenerator.Traversal.ITERATIVE, types));
+        assertEquals(nodes, lookups[0]);
+        assertEquals("def foo(a:int):void\n  puts(a + 1/*:int*/)/*:void*/\nend\n", code);
+    }
+
+    private static String generate(Node node, MirahSourceGenerator.Traversal traversal) {
+        return generate(node, traversal, null);
+    }
+
+    private static String generate(Node node, MirahSourceGenerator.Traversal traversal,
+                                   InferredTypes types) {
+        MirahSourceGenerator generator = new MirahSourceGenerator();
+        generator.setTraversal(traversal);
+        generator.setTypes(types);
+        generator.setRenderer(Renderer.PLAIN);
+        node.accept(generator, null);
+        return generator.toString();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import mirah.impl.MirahParser;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.Script;
+import mirah.lang.ast.StringCodeSource;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MultiWidthLayoutTest {
+
+    private static final String SOURCE =
+            "def foo(a:int)\n"
+            + "  puts bar(a, 'a long string', [1, 2, 3]), baz('another one', a + 1)\n"
+            + "  if a > 1 && a < 100000\n"
+            + "    puts 'in range'\n"
+            + "  end\n"
+            + "end\n"
+            + "def bar(x:int, y:String, z:int)\n"
+            + "  [x, y, z, x, y, z, x, y, z].each { |i| puts i }\n"
+            + "end\n";
+
+    public MultiWidthLayoutTest() {
+    }
+
+    @Test
+    public void testEveryWidth() {
+        Script script = parse(SOURCE);
+        MirahSourceGenerator multi = generator(script, TokenPrinter.Layout.MULTI_WIDTH);
+        for (int width = 20; width <= 100; ++width) {
+            MirahSourceGenerator backtracking = generator(script, TokenPrinter.Layout.BACKTRACKING);
+            backtracking.setLimit(width);
+            String expected = backtracking.toString();
+            multi.setLimit(width);
+            String actual = multi.toString();
+            assertEquals(strip(expected), strip(actual));
+            if (widest(expected) <= width) {
+                assertTrue(widest(actual) <= width);
+                assertTrue(lines(actual) <= lines(expected));
+            }
+        }
+    }
+
+    @Test
+    public void testSourceMap() {
+        Script script = parse(SOURCE);
+        MirahSourceGenerator multi = generator(script, TokenPrinter.Layout.MULTI_WIDTH);
+        multi.setLimit(30);
+        String text = multi.toString();
+        SourceMap map = multi.getSourceMap();
+        Node bar = script.body().get(1);
+        assertEquals(text.indexOf("def bar"), map.getStart(bar));
+        assertEquals(text.length(), map.getEnd(bar));
+        assertSame(bar, map.nodeAt(text.indexOf("def bar")));
+    }
+
+    private static MirahSourceGenerator generator(Script script, TokenPrinter.Layout layout) {
+        MirahSourceGenerator generator = new MirahSourceGenerator();
+        generator.setRenderer(Renderer.PLAIN);
+        generator.setLayout(layout);
+        script.accept(generator, null);
+        return generator;
+    }
+
+    // Soft parens only show up when a condition is wrapped.
+    private static String strip(String text) {
+        return text.replaceAll("[\\s()]", "");
+    }
+
+    private static int widest(String text) {
+        int widest = 0;
+        for (String line : text.split("\n")) {
+            widest = Math.max(widest, line.length());
+        }
+        return widest;
+    }
+
+    private static int lines(String text) {
+        return text.split("\n").length;
+    }
+
+    private static Script parse(String source) {
+        return (Script) new MirahParser().parse(new StringCodeSource("test.mirah", source));
+    }
+}
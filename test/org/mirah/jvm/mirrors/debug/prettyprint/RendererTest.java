@@ -0,0 +1,41 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RendererTest extends MirahSourceGenerator {
+
+    public RendererTest() {
+    }
+
+    @Before
+    public void setUp() {
+        out.setLimit(8);
+        addAll(span("str"), "a<b", kw("if"), ST, NBR, s("num", "12345"));
+    }
+
+    @Test
+    public void testHtml() {
+        assertEquals("<span class=str>a&lt;b<span class='kw'>if</span></span>\n"
+                + "    <span class='num'>12345</span>", toString());
+    }
+
+    @Test
+    public void testPlain() {
+        setRenderer(Renderer.PLAIN);
+        assertEquals("a<bif\n    12345", toString());
+    }
+
+    @Test
+    public void testAnsi() {
+        setRenderer(Renderer.ANSI);
+        assertEquals("\033[32ma<b\033[1;34mif\033[0m\033[32m\033[0m\n"
+                + "    \033[34m12345\033[0m", toString());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import mirah.lang.ast.Node;
+import mirah.lang.ast.SimpleString;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SourceMapTest extends MirahSourceGenerator {
+
+    private final Node outer = new SimpleString("outer");
+    private final Node first = new SimpleString("first");
+    private final Node second = new SimpleString("second");
+
+    public SourceMapTest() {
+    }
+
+    @Before
+    public void setUp() {
+        out.setLimit(10);
+        addAll(new NodeStartToken(outer), "x = ",
+               new NodeStartToken(first), "abcd", new NodeEndToken(), NBR, " + ",
+               new NodeStartToken(second), "efgh", new NodeEndToken(),
+               new NodeEndToken());
+    }
+
+    @Test
+    public void testWrappedLine() {
+        assertEquals("x = abcd\n     + efgh", toString());
+        check();
+    }
+
+    @Test
+    public void testLinear() {
+        setLayout(TokenPrinter.Layout.LINEAR);
+        assertEquals("x = abcd\n     + efgh", toString());
+        check();
+    }
+
+    private void check() {
+        SourceMap map = getSourceMap();
+        assertSame(outer, map.nodeAt(0));
+        assertSame(first, map.nodeAt(4));
+        assertSame(first, map.nodeAt(7));
+        assertSame(outer, map.nodeAt(8));
+        assertSame(second, map.nodeAt(16));
+        assertNull(map.nodeAt(20));
+        assertEquals(4, map.getStart(first));
+        assertEquals(8, map.getEnd(first));
+        assertEquals(16, map.getStart(second));
+        assertEquals(20, map.getEnd(second));
+        assertEquals(0, map.getStart(outer));
+        assertEquals(20, map.getEnd(outer));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the TokenPrinter cases with the output streamed to a writer.
+ */
+public class StreamingTokenPrinterTest extends TokenPrinterTest {
+
+    private final StringBuilder written;
+
+    public StreamingTokenPrinterTest() {
+        this(new StringBuilder());
+    }
+
+    private StreamingTokenPrinterTest(StringBuilder written) {
+        super(written);
+        this.written = written;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            finish();
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        return written.toString();
+    }
+
+    @Test
+    public void testWritesFinishedLines() {
+        addAll("a", NL, "abcdefg", NBR, "hijkl", NBR);
+        assertEquals("a\nabcdefg\n", written.toString());
+        addAll("x", NL);
+        assertEquals("a\nabcdefg\n    hijklx\n", written.toString());
+    }
+
+    @Test
+    public void testLinearWritesFinishedLines() {
+        setLayout(TokenPrinter.Layout.LINEAR);
+        addAll("a", NL, "abcdefg", NBR, "hijkl", NBR);
+        assertEquals("a\nabcdefg\n", written.toString());
+        addAll("x", NL);
+        assertEquals("a\nabcdefg\n    hijklx\n", written.toString());
+    }
+}
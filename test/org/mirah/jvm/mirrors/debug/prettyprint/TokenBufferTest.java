@@ -0,0 +1,73 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.mirah.jvm.mirrors.debug.prettyprint;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TokenBufferTest {
+
+    public TokenBufferTest() {
+    }
+
+    @Test
+    public void testSharesTokens() {
+        TokenBuffer buffer = new TokenBuffer();
+        buffer.addText("a");
+        buffer.addStyled("kw", "if ");
+        buffer.addText("a");
+        buffer.add(new StyledToken("kw", "if "));
+        assertEquals(4, buffer.size());
+        assertSame(buffer.get(0), buffer.get(2));
+        assertSame(buffer.get(1), buffer.get(3));
+        assertEquals("<span class='kw'>if </span>", ((StringToken) buffer.get(1)).getValue());
+    }
+
+    @Test
+    public void testEscapesWhenPrinted() {
+        TokenBuffer buffer = new TokenBuffer();
+        buffer.addText("a<b");
+        StringToken t = (StringToken) buffer.get(0);
+        assertEquals("a&lt;b", t.getValue());
+        assertEquals(3, t.length());
+    }
+
+    @Test
+    public void testRemoveRange() {
+        TokenBuffer buffer = new TokenBuffer();
+        buffer.addText("a");
+        buffer.add(new NewlineToken());
+        buffer.addText("b");
+        buffer.subList(0, 2).clear();
+        assertEquals(1, buffer.size());
+        assertEquals("b", ((StringToken) buffer.get(0)).getValue());
+    }
+
+    @Test
+    public void testRemovingTokensFreesThePool() {
+        TokenBuffer buffer = new TokenBuffer();
+        for (int i = 0; i < 10000; ++i) {
+            buffer.addText("name" + i);
+            buffer.add(new NodeStartToken(null));
+            buffer.addText("a");
+            buffer.subList(0, buffer.size() - 1).clear();
+            assertEquals("a", ((StringToken) buffer.get(0)).getValue());
+        }
+        assertTrue(buffer.poolSize() < 2048);
+        assertEquals(1, buffer.size());
+        buffer.addText("name9999");
+        buffer.addText("a");
+        assertEquals("name9999", ((StringToken) buffer.get(1)).getValue());
+        assertEquals("a", ((StringToken) buffer.get(2)).getValue());
+        buffer.clear();
+        assertEquals(0, buffer.poolSize());
+    }
+
+    @Test
+    public void testKeywordsAreShared() {
+        assertSame(MirahSourceGenerator.kw("if "), MirahSourceGenerator.kw("if "));
+    }
+}
@@ -21,6 +21,10 @@ public class TokenPrinterTest extends MirahSourceGenerator {
     public TokenPrinterTest() {
     }
 
+    protected TokenPrinterTest(Appendable writer) {
+        super(writer);
+    }
+
     @Before
     public void setUp() {
         out.setLimit(10);
@@ -155,6 +159,15 @@ public class TokenPrinterTest extends MirahSourceGenerator {
         assertEquals("abc\n    d\n    e", toString());
     }
 
+    @Test
+    public void testSetLimitAfterPrinting() {
+        addAll("abcde", NL);
+        toString();
+        out.setLimit(3);
+        addAll("a", NBR, "b", NBR, "c", NBR, "d", NBR, "e", NBR);
+        assertTrue(toString().endsWith("abc\n    d\n    e"));
+    }
+
     @Test
     public void testListWrap3() {
         out.setLimit(80);
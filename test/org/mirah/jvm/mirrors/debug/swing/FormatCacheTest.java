@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.mirah.jvm.mirrors.debug.swing;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FormatCacheTest {
+
+    private Path file;
+    private final byte[] source = "puts 1".getBytes();
+    private final byte[] output = "puts(1)".getBytes();
+
+    public FormatCacheTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("format", ".cache");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        try (FormatCache cache = new FormatCache(file)) {
+            assertNull(cache.get(FormatCache.key(source, 80, 2, 0)));
+            cache.put(FormatCache.key(source, 80, 2, 0), output);
+        }
+        try (FormatCache cache = new FormatCache(file)) {
+            assertArrayEquals(output, cache.get(FormatCache.key(source, 80, 2, 0)));
+            assertNull(cache.get(FormatCache.key(source, 60, 2, 0)));
+            assertNull(cache.get(FormatCache.key(source, 80, 4, 0)));
+            assertNull(cache.get(FormatCache.key("puts 2".getBytes(), 80, 2, 0)));
+        }
+    }
+
+    @Test
+    public void testTruncatedRecord() throws IOException {
+        try (FormatCache cache = new FormatCache(file)) {
+            cache.put(FormatCache.key(source, 80, 2, 0), output);
+            cache.put(FormatCache.key(source, 60, 2, 0), output);
+        }
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            size = channel.size();
+            channel.truncate(size - 1);
+        }
+        try (FormatCache cache = new FormatCache(file)) {
+            assertEquals((size - 8) / 2 + 8, Files.size(file));
+            assertArrayEquals(output, cache.get(FormatCache.key(source, 80, 2, 0)));
+            assertNull(cache.get(FormatCache.key(source, 60, 2, 0)));
+            cache.put(FormatCache.key(source, 60, 2, 0), output);
+        }
+        try (FormatCache cache = new FormatCache(file)) {
+            assertArrayEquals(output, cache.get(FormatCache.key(source, 60, 2, 0)));
+        }
+    }
+
+    @Test
+    public void testSharedFile() throws IOException {
+        try (FormatCache first = new FormatCache(file);
+             FormatCache second = new FormatCache(file)) {
+            first.put(FormatCache.key(source, 80, 2, 0), output);
+            second.put(FormatCache.key(source, 60, 2, 0), output);
+            first.put(FormatCache.key(source, 40, 2, 0), output);
+        }
+        try (FormatCache cache = new FormatCache(file)) {
+            assertArrayEquals(output, cache.get(FormatCache.key(source, 80, 2, 0)));
+            assertArrayEquals(output, cache.get(FormatCache.key(source, 60, 2, 0)));
+            assertArrayEquals(output, cache.get(FormatCache.key(source, 40, 2, 0)));
+        }
+    }
+}
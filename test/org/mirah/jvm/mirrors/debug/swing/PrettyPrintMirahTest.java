@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.mirah.jvm.mirrors.debug.swing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PrettyPrintMirahTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private Path dir;
+
+    public PrettyPrintMirahTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("prettyprint");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException ex)
+                    throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static boolean parse(String... args) {
+        return new PrettyPrintMirah().processArgs(args);
+    }
+
+    @Test
+    public void testProcessArgs() {
+        assertTrue(parse("src"));
+        assertTrue(parse("-w", "60", "-s", "4", "-r", "html", "-j", "2", "-n", "0", "src"));
+        assertTrue(parse("-i", "src"));
+        assertTrue(parse("-o", "out", "-c", "cache", "src"));
+    }
+
+    @Test
+    public void testBadArgs() {
+        assertFalse(parse());
+        assertFalse(parse("-w", "60"));
+        assertFalse(parse("-w", "abc", "src"));
+        assertFalse(parse("-r", "foo", "src"));
+        assertFalse(parse("-j", "0", "src"));
+        assertFalse(parse("-w", "-1", "src"));
+        assertFalse(parse("-x", "src"));
+        assertFalse(parse("src", "-w"));
+        assertFalse(parse("src", "-o"));
+        assertFalse(parse("-i", "-o", "out", "src"));
+    }
+
+    @Test
+    public void testSyntaxError() throws IOException {
+        Path src = Files.createDirectory(dir.resolve("src"));
+        Path out = dir.resolve("out");
+        Files.write(src.resolve("good.mirah"), "puts 1\n".getBytes(UTF8));
+        Files.write(src.resolve("bad.mirah"), "def (\n".getBytes(UTF8));
+        PrettyPrintMirah tool = new PrettyPrintMirah();
+        assertTrue(tool.processArgs(new String[] {"-o", out.toString(), "-j", "1",
+                                                  src.toString()}));
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream oldErr = System.err;
+        System.setErr(new PrintStream(err, true, "UTF-8"));
+        int status;
+        try {
+            status = tool.run();
+        } finally {
+            System.setErr(oldErr);
+        }
+        String report = new String(err.toByteArray(), UTF8);
+        assertEquals(report, 1, status);
+        assertTrue(report, report.contains(src.resolve("bad.mirah") + ": "));
+        assertFalse(report, report.contains(src.resolve("good.mirah") + ": "));
+        assertTrue(report, report.contains("1 files failed"));
+        assertTrue(Files.exists(out.resolve("good.mirah")));
+        assertFalse(Files.exists(out.resolve("bad.mirah")));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import mirah.impl.MirahParser;
+import mirah.lang.ast.Fixnum;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.NodeList;
+import mirah.lang.ast.NodeScanner;
+import mirah.lang.ast.Not;
+import mirah.lang.ast.Script;
+import mirah.lang.ast.StringCodeSource;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AstIndexTest {
+
+    private Script script;
+    private AstIndex index;
+
+    public AstIndexTest() {
+    }
+
+    @Before
+    public void setUp() {
+        script = (Script) new MirahParser().parse(new StringCodeSource("test.mirah",
+                "class Foo\n"
+                + "  def foo(a:int, b = 2)\n"
+                + "    if a > b\n"
+                + "      puts [1, 2, 3].map { |x| x * a }\n"
+                + "    end\n"
+                + "  end\n"
+                + "end\n"));
+        index = new AstIndex(script);
+    }
+
+    @Test
+    public void testMatchesTree() {
+        final List<Node> all = new ArrayList<>();
+        new NodeScanner() {
+            @Override
+            public boolean enterDefault(Node node, Object arg) {
+                if (node != null) {
+                    all.add(node);
+                }
+                return true;
+            }
+        }.scan(script);
+        assertEquals(all.size(), index.size());
+        for (Node node : all) {
+            Node[] children = index.getChildren(node);
+            assertEquals(childrenOf(node), Arrays.asList(children));
+            for (int i = 0; i < children.length; ++i) {
+                assertEquals(i, index.getIndexOfChild(node, children[i]));
+                assertSame(node, index.getParent(children[i]));
+            }
+            assertEquals(NodeModel.createPath(node), index.getPath(node));
+            assertEquals(index.getPath(node).getPathCount() - 1, index.getDepth(node));
+        }
+    }
+
+    @Test
+    public void testPathsAreShared() {
+        Node node = script;
+        while (index.getDepth(node) < 4) {
+            node = index.getChildren(node)[0];
+        }
+        Node parent = index.getParent(node);
+        assertSame(index.getPath(node), index.getPath(node));
+        assertSame(index.getPath(parent), index.getPath(node).getParentPath());
+    }
+
+    @Test
+    public void testUnknownNode() {
+        Node other = (Node) script.body().clone();
+        assertFalse(index.contains(other));
+        assertNull(index.getChildren(other));
+        assertNull(index.getPath(other));
+        assertEquals(-1, index.getIndexOfChild(script, other));
+    }
+
+    @Test
+    public void testDeepTree() {
+        Node leaf = new Fixnum(1);
+        Node node = leaf;
+        for (int i = 0; i < 50000; ++i) {
+            NodeList body = new NodeList();
+            body.add(node);
+            node = new Not(body);
+        }
+        AstIndex deep = new AstIndex(node);
+        assertEquals(100001, deep.size());
+        assertEquals(100000, deep.getDepth(leaf));
+        assertSame(leaf.parent(), deep.getParent(leaf));
+    }
+
+    private static List<Node> childrenOf(final Node parent) {
+        final List<Node> children = new ArrayList<>();
+        new NodeScanner() {
+            @Override
+            public boolean enterDefault(Node node, Object arg) {
+                if (node == parent) {
+                    return true;
+                } else if (node != null) {
+                    children.add(node);
+                }
+                return false;
+            }
+        }.scan(parent);
+        return children;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FieldAccessorsTest {
+
+    static class Sample {
+        static int ignored = 1;
+        private long count = 42;
+        private boolean flag = true;
+        private String name = "sample";
+        private Object list = new ArrayList<String>();
+        private Object[] items = new String[] { "a" };
+        private List<String> empty = null;
+    }
+
+    public FieldAccessorsTest() {
+    }
+
+    @Test
+    public void testReadsFieldsByName() {
+        FieldAccessors fields = FieldAccessors.of(Sample.class);
+        assertSame(fields, FieldAccessors.of(Sample.class));
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < fields.size(); ++i) {
+            names.add(fields.getName(i));
+        }
+        assertEquals(Arrays.asList("count", "empty", "flag", "items", "list", "name"), names);
+
+        Sample sample = new Sample();
+        assertEquals(42L, fields.get(sample, 0));
+        assertNull(fields.get(sample, 1));
+        assertEquals(Boolean.TRUE, fields.get(sample, 2));
+        assertSame(sample.items, fields.get(sample, 3));
+        assertSame(sample.list, fields.get(sample, 4));
+        assertEquals("sample", fields.get(sample, 5));
+    }
+
+    @Test
+    public void testValueClass() {
+        FieldAccessors fields = FieldAccessors.of(Sample.class);
+        Sample sample = new Sample();
+        assertEquals(long.class, fields.getValueClass(0, fields.get(sample, 0)));
+        assertEquals(List.class, fields.getValueClass(1, null));
+        assertEquals(String[].class, fields.getValueClass(3, fields.get(sample, 3)));
+        assertEquals(ArrayList.class, fields.getValueClass(4, fields.get(sample, 4)));
+        assertEquals(String.class, fields.getValueClass(5, fields.get(sample, 5)));
+    }
+}
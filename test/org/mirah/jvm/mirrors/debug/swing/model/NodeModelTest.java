@@ -0,0 +1,62 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import mirah.impl.MirahParser;
+import mirah.lang.ast.Fixnum;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.NodeList;
+import mirah.lang.ast.Not;
+import mirah.lang.ast.Script;
+import mirah.lang.ast.StringCodeSource;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NodeModelTest {
+
+    private Script script;
+
+    public NodeModelTest() {
+    }
+
+    @Before
+    public void setUp() {
+        script = (Script) new MirahParser().parse(
+                new StringCodeSource("test.mirah", "def foo(a:int)\n  puts a + 1\nend\n"));
+    }
+
+    @Test
+    public void testGeneratedCodeIsCached() {
+        String code = new NodeModel(script).getGeneratedCode();
+        assertSame(code, new NodeModel(script).getGeneratedCode());
+        assertNotSame(code, new NodeModel(script).getGeneratedCode(10));
+    }
+
+    @Test
+    public void testCloneInvalidates() {
+        String code = new NodeModel(script).getGeneratedCode();
+        Node body = script.body();
+        body.clone();
+        String regenerated = new NodeModel(script).getGeneratedCode();
+        assertNotSame(code, regenerated);
+        assertEquals(code, regenerated);
+    }
+
+    @Test
+    public void testDeepTree() {
+        Node node = new Fixnum(1);
+        for (int i = 0; i < 50000; ++i) {
+            NodeList body = new NodeList();
+            body.add(node);
+            node = new Not(body);
+        }
+        String code = new NodeModel(node).getGeneratedCode(80);
+        assertTrue(code.endsWith(">1</span>"));
+        assertSame(code, new NodeModel(node).getGeneratedCode(80));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreePath;
+import mirah.impl.MirahParser;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.NodeList;
+import mirah.lang.ast.Script;
+import mirah.lang.ast.StringCodeSource;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NodeTreeModelTest {
+
+    private Script script;
+    private NodeList body;
+    private NodeTreeModel tree;
+    private final List<String> events = new ArrayList<>();
+
+    public NodeTreeModelTest() {
+    }
+
+    @Before
+    public void setUp() {
+        script = (Script) new MirahParser().parse(new StringCodeSource("test.mirah",
+                "a = 1\nb = 2\nc = 3\n"));
+        body = (NodeList) script.body();
+        tree = new NodeTreeModel(script);
+        tree.addTreeModelListener(new TreeModelListener() {
+            @Override
+            public void treeNodesChanged(TreeModelEvent e) {
+                events.add("changed " + describe(e));
+            }
+
+            @Override
+            public void treeNodesInserted(TreeModelEvent e) {
+                events.add("inserted " + describe(e));
+            }
+
+            @Override
+            public void treeNodesRemoved(TreeModelEvent e) {
+                events.add("removed " + describe(e));
+            }
+
+            @Override
+            public void treeStructureChanged(TreeModelEvent e) {
+                events.add("structure " + describe(e));
+            }
+        });
+    }
+
+    @Test
+    public void testUnchanged() {
+        tree.refresh();
+        assertEquals(Arrays.asList(), events);
+    }
+
+    @Test
+    public void testInsertAndRemove() {
+        Node a = body.get(0);
+        Node copy = (Node) a.clone();
+        body.remove(1);
+        body.add(copy);
+        tree.refresh();
+        assertEquals(Arrays.asList(
+                "removed NodeList [1]",
+                "inserted NodeList [2]"), events);
+        assertSame(copy, tree.getChild(body, 2));
+        assertEquals(2, tree.getIndexOfChild(body, copy));
+    }
+
+    @Test
+    public void testReplace() {
+        Node copy = (Node) body.get(1).clone();
+        body.set(1, copy);
+        tree.refresh();
+        assertEquals(Arrays.asList(
+                "removed NodeList [1]",
+                "inserted NodeList [1]"), events);
+    }
+
+    @Test
+    public void testReorder() {
+        Node a = body.remove(0);
+        body.add(a);
+        tree.refresh();
+        assertEquals(Arrays.asList("structure NodeList []"), events);
+    }
+
+    @Test
+    public void testChunks() {
+        Script big = (Script) new MirahParser().parse(new StringCodeSource("test.mirah",
+                "a = 1\nb = 2\nc = 3\nd = 4\ne = 5\n"));
+        NodeList statements = (NodeList) big.body();
+        NodeTreeModel chunked = new NodeTreeModel(big, 2);
+        assertEquals(2, chunked.getChildCount(statements));
+        NodeRange first = (NodeRange) chunked.getChild(statements, 0);
+        NodeRange last = (NodeRange) chunked.getChild(statements, 1);
+        assertEquals("[0..3]", first.toString());
+        assertEquals("[4..4]", last.toString());
+        assertEquals(first, chunked.getChild(statements, 0));
+        assertEquals(1, chunked.getIndexOfChild(statements, last));
+        assertEquals(-1, chunked.getIndexOfChild(statements, statements.get(0)));
+
+        assertEquals(2, chunked.getChildCount(first));
+        NodeRange second = (NodeRange) chunked.getChild(first, 1);
+        assertEquals("[2..3]", second.toString());
+        assertEquals(2, chunked.getChildCount(second));
+        assertSame(statements.get(3), chunked.getChild(second, 1));
+        assertEquals(1, chunked.getIndexOfChild(second, statements.get(3)));
+        assertEquals(-1, chunked.getIndexOfChild(second, statements.get(4)));
+        assertEquals(1, chunked.getChildCount(last));
+        assertSame(statements.get(4), chunked.getChild(last, 0));
+
+        TreePath path = chunked.getPath(statements.get(3));
+        assertEquals(Arrays.asList(big, statements, first, second, statements.get(3)),
+                Arrays.asList(path.getPath()));
+        for (int i = 1; i < path.getPathCount(); ++i) {
+            Object parent = path.getPathComponent(i - 1);
+            Object child = path.getPathComponent(i);
+            assertEquals(child, chunked.getChild(parent, chunked.getIndexOfChild(parent, child)));
+        }
+    }
+
+    @Test
+    public void testFilter() {
+        Script source = (Script) new MirahParser().parse(new StringCodeSource("test.mirah",
+                "class Foo\n  def foo(a:int)\n    bar(a)\n  end\n  def baz; end\nend\n"));
+        NodeTreeModel all = new NodeTreeModel(source);
+        NodeTreeModel filtered = new NodeTreeModel(source,
+                NodeTreeModel.DEFAULT_CHUNK_SIZE, NodeFilter.SYNTHETIC);
+        List<Object> expected = new ArrayList<>();
+        visible(all, source, NodeFilter.SYNTHETIC, expected);
+        List<Object> shown = new ArrayList<>();
+        walk(filtered, source, shown);
+        List<Object> everything = new ArrayList<>();
+        walk(all, source, everything);
+        assertEquals(expected, shown);
+        assertTrue(shown.size() < everything.size());
+
+        filtered.addTreeModelListener(new TreeModelListener() {
+            @Override
+            public void treeNodesChanged(TreeModelEvent e) {
+            }
+
+            @Override
+            public void treeNodesInserted(TreeModelEvent e) {
+            }
+
+            @Override
+            public void treeNodesRemoved(TreeModelEvent e) {
+            }
+
+            @Override
+            public void treeStructureChanged(TreeModelEvent e) {
+                events.add("structure " + describe(e));
+            }
+        });
+        filtered.setFilter(NodeFilter.ALL);
+        assertEquals(Arrays.asList("structure Script []"), events);
+        shown.clear();
+        walk(filtered, source, shown);
+        assertEquals(everything, shown);
+    }
+
+    private static void walk(NodeTreeModel model, Object node, List<Object> out) {
+        out.add(node);
+        for (int i = 0; i < model.getChildCount(node); ++i) {
+            walk(model, model.getChild(node, i), out);
+        }
+    }
+
+    /**
+     * Adds the nodes under node that filter shows, checking each node the
+     * slow way.
+     */
+    private static boolean visible(NodeTreeModel all, Node node, NodeFilter filter, List<Object> out) {
+        if (node != all.getRoot() && !filter.isVisible(node)) {
+            return false;
+        }
+        int at = out.size();
+        out.add(node);
+        boolean empty = true;
+        for (int i = 0; i < all.getChildCount(node); ++i) {
+            if (visible(all, (Node) all.getChild(node, i), filter, out)) {
+                empty = false;
+            }
+        }
+        if (empty && node != all.getRoot() && !filter.isVisibleWhenEmpty(node)) {
+            out.remove(at);
+            return false;
+        }
+        return true;
+    }
+
+    private static String describe(TreeModelEvent e) {
+        return e.getTreePath().getLastPathComponent().getClass().getSimpleName()
+                + " " + Arrays.toString(e.getChildIndices());
+    }
+}
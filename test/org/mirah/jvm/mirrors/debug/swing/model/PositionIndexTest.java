@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import mirah.impl.MirahParser;
+import mirah.lang.ast.Fixnum;
+import mirah.lang.ast.Node;
+import mirah.lang.ast.NodeScanner;
+import mirah.lang.ast.Not;
+import mirah.lang.ast.Position;
+import mirah.lang.ast.Script;
+import mirah.lang.ast.StringCodeSource;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PositionIndexTest {
+
+    private static final String SOURCE =
+            "class Foo\n"
+            + "  def foo(a:int, b = 2)\n"
+            + "    if a > b\n"
+            + "      puts [1, 2, 3].map { |x| x * a }\n"
+            + "    end\n"
+            + "  end\n"
+            + "end\n";
+
+    public PositionIndexTest() {
+    }
+
+    @Test
+    public void testInnermostNode() {
+        Script script = (Script) new MirahParser().parse(new StringCodeSource("test.mirah", SOURCE));
+        PositionIndex index = new PositionIndex(script);
+        for (int offset = 0; offset <= SOURCE.length(); ++offset) {
+            assertSame("at " + offset, innermost(script, offset), index.nodeAt(offset));
+        }
+        assertNull(index.nodeAt(-1));
+    }
+
+    @Test
+    public void testDeepTree() {
+        Script script = (Script) new MirahParser().parse(new StringCodeSource("test.mirah", "!1"));
+        Position position = script.body().get(0).position();
+        Node leaf = new Fixnum(position, 1);
+        Node node = leaf;
+        for (int i = 0; i < 50000; ++i) {
+            node = new Not(position, node);
+        }
+        PositionIndex index = new PositionIndex(node);
+        assertSame(leaf, index.nodeAt(position.startChar()));
+    }
+
+    /**
+     * Finds the node at offset the slow way: of the nodes covering it, the
+     * one that starts last, then the shortest, then the deepest, then the last
+     * one scanned.
+     */
+    private static Node innermost(Script script, final int offset) {
+        final List<Node> found = new ArrayList<>();
+        new NodeScanner() {
+            private int depth = 0;
+            private int bestDepth = -1;
+
+            @Override
+            public boolean enterDefault(Node node, Object arg) {
+                if (node == null) {
+                    return false;
+                }
+                Position p = node.position();
+                if (p != null && p.startChar() <= offset && offset < p.endChar()) {
+                    Position best = found.isEmpty() ? null : found.get(0).position();
+                    if (best == null || p.startChar() > best.startChar()
+                            || p.startChar() == best.startChar() && (p.endChar() < best.endChar()
+                                || p.endChar() == best.endChar() && depth >= bestDepth)) {
+                        found.clear();
+                        found.add(node);
+                        bestDepth = depth;
+                    }
+                }
+                ++depth;
+                return true;
+            }
+
+            @Override
+            public Object exitDefault(Node node, Object arg) {
+                if (node != null) {
+                    --depth;
+                }
+                return null;
+            }
+        }.scan(script);
+        return found.isEmpty() ? null : found.get(0);
+    }
+}
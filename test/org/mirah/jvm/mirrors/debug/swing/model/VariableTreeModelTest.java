@@ -6,9 +6,14 @@
 
 package org.mirah.jvm.mirrors.debug.swing.model;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import javax.swing.event.TreeModelListener;
 import javax.swing.tree.TreePath;
 import mirah.lang.ast.Script;
@@ -61,5 +66,149 @@ public class VariableTreeModelTest {
         assertEquals(Arrays.asList("(type)", "body", "clone_listeners", "originalNode", "parent", "position"), items);
     }
 
+    @Test
+    public void testPages() {
+        Set<Integer> set = new HashSet<>();
+        for (int i = 0; i < 2500; ++i) {
+            set.add(i);
+        }
+        VariableTreeModel instance = new VariableTreeModel();
+        instance.addVariable("set", set);
+        instance.addVariable("array", new int[] { 4, 5, 6 });
+        Object setRow = instance.getChild(instance.getRoot(), 0);
+        assertEquals(3, instance.getChildCount(setRow));
+        assertEquals(Arrays.asList("[0..999]", "[1000..1999]", "[2000..2499]"), names(instance, setRow));
+        Object last = instance.getChild(setRow, 2);
+        assertEquals(500, instance.getChildCount(last));
+        VariableModel element = (VariableModel) instance.getChild(last, 499);
+        assertEquals("[2499]", element.getName());
+        assertSame(set.toArray()[2499], element.getValue());
+
+        Object arrayRow = instance.getChild(instance.getRoot(), 1);
+        assertEquals(Arrays.asList("0", "1", "2"), names(instance, arrayRow));
+        assertEquals(5, ((VariableModel) instance.getChild(arrayRow, 1)).getValue());
+    }
+
+    @Test
+    public void testMapEntries() {
+        Map<String, Object> map = new TreeMap<>();
+        map.put("a", 1);
+        map.put("b", Arrays.asList("x", "y"));
+        VariableTreeModel instance = new VariableTreeModel();
+        instance.addVariable("map", map);
+        Object mapRow = instance.getChild(instance.getRoot(), 0);
+        assertEquals(Arrays.asList("a", "b"), names(instance, mapRow));
+
+        Object a = instance.getChild(mapRow, 0);
+        assertEquals(Arrays.asList("(key)"), names(instance, a));
+        assertEquals("1", new VariableRowModel().getValueFor(a, 1));
+        Object b = instance.getChild(mapRow, 1);
+        assertEquals(Arrays.asList("(key)", "[0]", "[1]"), names(instance, b));
+        assertEquals("b", ((VariableModel) instance.getChild(b, 0)).getValue());
+        assertEquals("size: 2", new VariableRowModel().getValueFor(b, 1));
+
+        // Rows keep showing the entries as they were when first expanded.
+        map.put("c", 3);
+        assertEquals(2, instance.getChildCount(mapRow));
+    }
+
+    @Test
+    public void testSnapshots() {
+        int[] array = { 1, 2, 3 };
+        List<String> list = new ArrayList<>(Arrays.asList("x"));
+        VariableTreeModel instance = new VariableTreeModel();
+        instance.setSnapshotDepth(2);
+        instance.addVariable("array", array);
+        instance.addVariable("list", list);
+        ValueSnapshot first = instance.capture(0);
+        assertTrue(first.isComplete());
+        assertEquals(0, first.getChanges());
+
+        // The rows show the values as they were at the stop.
+        array[1] = 7;
+        list.add("y");
+        Object arrayRow = instance.getChild(instance.getRoot(), 0);
+        assertEquals("2", new VariableRowModel().getValueFor(instance.getChild(arrayRow, 1), 1));
+        Object listRow = instance.getChild(instance.getRoot(), 1);
+        assertEquals(Arrays.asList("[0]"), names(instance, listRow));
+
+        instance.nextStop();
+        instance.clear();
+        instance.addVariable("array", array);
+        instance.addVariable("list", list);
+        ValueSnapshot second = instance.capture(0);
+        arrayRow = instance.getChild(instance.getRoot(), 0);
+        assertFalse(((VariableModel) instance.getChild(arrayRow, 0)).isChanged());
+        assertTrue(((VariableModel) instance.getChild(arrayRow, 1)).isChanged());
+        listRow = instance.getChild(instance.getRoot(), 1);
+        assertTrue(((VariableModel) listRow).isChanged());
+        assertFalse(((VariableModel) instance.getChild(listRow, 0)).isChanged());
+        assertTrue(((VariableModel) instance.getChild(listRow, 1)).isChanged());
+        assertEquals(3, second.getChanges());
+
+        // Another frame has nothing to compare against.
+        assertEquals(0, instance.capture(1).getChanges());
+
+        ValueSnapshot partial = ValueSnapshot.capture(instance, instance.vars, null, 2, 1, 1000);
+        assertFalse(partial.isComplete());
+        assertEquals(2, partial.size());
+
+        instance.setSnapshotDepth(0);
+        assertNull(instance.capture(0));
+    }
+
+    @Test
+    public void testSnapshotTakenOncePerStop() {
+        int[] array = { 1, 2, 3 };
+        VariableTreeModel instance = new VariableTreeModel();
+        instance.setSnapshotDepth(2);
+        instance.addVariable("array", array);
+        ValueSnapshot first = instance.capture(0);
+        instance.nextStop();
+
+        array[0] = 4;
+        instance.clear();
+        instance.addVariable("array", array);
+        instance.addLiveVariable("selection", array);
+        ValueSnapshot second = instance.capture(0);
+        assertEquals(1, second.getChanges());
+
+        // Selecting another node shows the same rows again.
+        array[1] = 5;
+        Object row = instance.getChild(instance.getRoot(), 0);
+        instance.clear();
+        instance.addLiveVariable("selection", new int[0]);
+        instance.addVariable("array", array);
+        assertSame(second, instance.capture(0));
+        assertSame(row, instance.getChild(instance.getRoot(), 1));
+        assertEquals(1, ((VariableModel) row).getIndex());
+        assertEquals("2", new VariableRowModel().getValueFor(instance.getChild(row, 1), 1));
+
+        // The selection is read live and never marked.
+        VariableModel selection = (VariableModel) instance.getChild(instance.getRoot(), 0);
+        assertFalse(selection.isChanged());
+        assertNull(selection.getCapturedText());
+        assertNotSame(first, second);
+    }
+
+    private static List<String> names(VariableTreeModel model, Object parent) {
+        List<String> names = new LinkedList<>();
+        for (int i = 0; i < model.getChildCount(parent); ++i) {
+            names.add(((VariableModel) model.getChild(parent, i)).getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testTypeModelsAreShared() {
+        VariableTreeModel first = new VariableTreeModel();
+        VariableTreeModel second = new VariableTreeModel();
+        assertSame(first.lookup(Script.class), second.lookup(Script.class));
+        assertTrue(first.lookup(Script.class) instanceof NodeTypeModel);
+        assertTrue(first.lookup(LinkedList.class) instanceof CollectionModel);
+        assertTrue(first.lookup(String[].class) instanceof ArrayModel);
+        assertNull(first.getTyper());
+    }
+
     
 }
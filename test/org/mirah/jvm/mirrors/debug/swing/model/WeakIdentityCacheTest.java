@@ -0,0 +1,107 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.mirah.jvm.mirrors.debug.swing.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WeakIdentityCacheTest {
+
+    public WeakIdentityCacheTest() {
+    }
+
+    @Test
+    public void testKeyedByIdentity() {
+        WeakIdentityCache<String, String> cache = new WeakIdentityCache<>(8);
+        String key = new String("a");
+        assertEquals("x", cache.putIfAbsent(key, "x"));
+        assertEquals("x", cache.putIfAbsent(key, "y"));
+        assertEquals("x", cache.get(key));
+        assertNull(cache.get(new String("a")));
+        cache.remove(key);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testSizeBound() {
+        WeakIdentityCache<Object, Integer> cache = new WeakIdentityCache<>(4);
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            Object key = new Object();
+            keys.add(key);
+            cache.putIfAbsent(key, i);
+        }
+        assertEquals(4, cache.size());
+        assertNull(cache.get(keys.get(0)));
+        assertEquals(Integer.valueOf(9), cache.get(keys.get(9)));
+    }
+
+    @Test
+    public void testRemoveAndAddAgain() {
+        WeakIdentityCache<Object, Integer> cache = new WeakIdentityCache<>(4);
+        Object x = new Object();
+        cache.putIfAbsent(x, 0);
+        cache.remove(x);
+        cache.putIfAbsent(x, 1);
+        List<Object> keys = new ArrayList<>();
+        for (int i = 2; i < 5; ++i) {
+            Object key = new Object();
+            keys.add(key);
+            cache.putIfAbsent(key, i);
+        }
+        // Evicting the first entry for x must not drop the second.
+        assertEquals(Integer.valueOf(1), cache.get(x));
+        assertEquals(4, cache.size());
+
+        // Removed entries don't count towards the bound.
+        cache.remove(keys.get(0));
+        Object y = new Object();
+        cache.putIfAbsent(y, 5);
+        assertEquals(Integer.valueOf(1), cache.get(x));
+        assertEquals(Integer.valueOf(5), cache.get(y));
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testManyRemoves() {
+        WeakIdentityCache<Object, Integer> cache = new WeakIdentityCache<>(4);
+        Object kept = new Object();
+        cache.putIfAbsent(kept, -1);
+        for (int i = 0; i < 100; ++i) {
+            Object key = new Object();
+            cache.putIfAbsent(key, i);
+            cache.remove(key);
+        }
+        assertEquals(Integer.valueOf(-1), cache.get(kept));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testClear() {
+        WeakIdentityCache<Object, Integer> cache = new WeakIdentityCache<>(4);
+        for (int i = 0; i < 10; ++i) {
+            cache.clear();
+            Object key = new Object();
+            cache.putIfAbsent(key, i);
+            assertEquals(Integer.valueOf(i), cache.get(key));
+        }
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testKeysAreWeak() throws InterruptedException {
+        WeakIdentityCache<Object, String> cache = new WeakIdentityCache<>(4);
+        cache.putIfAbsent(new Object(), "x");
+        for (int i = 0; i < 50 && cache.size() > 0; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, cache.size());
+    }
+}